@@ -11,6 +11,9 @@ import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiScrollable;
 import com.android.uiautomator.core.UiSelector;
+import com.urbanairship.pushsender.Clock;
+import com.urbanairship.pushsender.RealClock;
+import com.urbanairship.pushsender.StepTracer;
 
 import java.util.UUID;
 
@@ -20,9 +23,11 @@ import java.util.UUID;
  */
 public class AutomatorUtils {
 
-    private static int WAIT_FOR_UI_OBJECTS_DELAY = 1000;  // 1 second
+    private static int WAIT_FOR_UI_OBJECTS_DELAY = 100;  // 100 milliseconds
     private static int ALL_APPS_BUTTON_WAIT_TIME = 5000;   // 5 seconds
 
+    private static NotificationShade notificationShade;
+    private static volatile Clock clock = RealClock.getInstance();
 
 
     /**
@@ -37,23 +42,110 @@ public class AutomatorUtils {
             return false;
         }
 
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < timeInMilliseconds) {
-            boolean allExist = true;
-            for (UiObject uiObject : uiObjects) {
-                if (!uiObject.exists()) {
-                    allExist = false;
+        StepTracer.begin(StepTracer.CATEGORY_WAIT, "waitForUiObjectsToExist");
+        try {
+            long startTime = clock.currentTimeMillis();
+            while (true) {
+                boolean allExist = true;
+                for (UiObject uiObject : uiObjects) {
+                    if (!uiObject.exists()) {
+                        allExist = false;
+                        break;
+                    }
                 }
-            }
 
-            if (allExist) {
-                return true;
-            } else {
-                Thread.sleep(WAIT_FOR_UI_OBJECTS_DELAY);
+                if (allExist) {
+                    return true;
+                }
+
+                // Check once more after the last sleep so objects that show up at the deadline are found
+                long remainingTime = timeInMilliseconds - (clock.currentTimeMillis() - startTime);
+                if (remainingTime <= 0) {
+                    return false;
+                }
+                clock.sleep(Math.min(WAIT_FOR_UI_OBJECTS_DELAY, remainingTime));
             }
+        } finally {
+            StepTracer.end();
         }
+    }
 
-        return false;
+    /**
+     * Waits for UiObjects to exist within the learned budget for a named wait, and records how long it took
+     * @param budgetName The name of the wait in TimeoutBudgets
+     * @param defaultTime The budget to use until the wait has history, in milliseconds
+     * @param uiObjects UiObjects to check for
+     * @return <code>true</code> if all ui objects exist, otherwise <code>false</code>
+     * @throws InterruptedException
+     */
+    public static boolean waitForUiObjectsToExist(String budgetName, int defaultTime, UiObject... uiObjects) throws InterruptedException {
+        return waitForUiObjectsToExist(budgetName, defaultTime, true, uiObjects);
+    }
+
+    /**
+     * Waits for UiObjects that may legitimately never appear within the learned budget for a named wait.
+     * Only waits that find the objects are recorded, so a missing object does not raise the budget.
+     * @param budgetName The name of the wait in TimeoutBudgets
+     * @param defaultTime The budget to use until the wait has history, in milliseconds
+     * @param uiObjects UiObjects to check for
+     * @return <code>true</code> if all ui objects exist, otherwise <code>false</code>
+     * @throws InterruptedException
+     */
+    public static boolean waitForOptionalUiObjectsToExist(String budgetName, int defaultTime, UiObject... uiObjects) throws InterruptedException {
+        return waitForUiObjectsToExist(budgetName, defaultTime, false, uiObjects);
+    }
+
+    private static boolean waitForUiObjectsToExist(String budgetName, int defaultTime, boolean recordTimeout, UiObject... uiObjects) throws InterruptedException {
+        TimeoutBudgets budgets = TimeoutBudgets.getInstance();
+        long startTime = clock.currentTimeMillis();
+        boolean exist = waitForUiObjectsToExist(budgets.getBudget(budgetName, defaultTime), uiObjects);
+        if (exist || recordTimeout) {
+            recordWait(budgetName, clock.currentTimeMillis() - startTime, exist);
+        }
+        return exist;
+    }
+
+    /**
+     * Records how long a named wait took in TimeoutBudgets. Nothing is recorded while a test
+     * clock is set, since its times would end up in the budgets used on devices.
+     * @param budgetName The name of the wait in TimeoutBudgets
+     * @param elapsedTime How long the wait took, in milliseconds
+     * @param completed <code>true</code> if the wait finished before its budget, otherwise <code>false</code>
+     */
+    static void recordWait(String budgetName, long elapsedTime, boolean completed) {
+        if (clock instanceof RealClock) {
+            TimeoutBudgets.getInstance().record(budgetName, elapsedTime, completed);
+        }
+    }
+
+    /**
+     * Sleeps for the budget of a named sleep, which only changes with TimeoutBudgets.setOverride
+     * @param budgetName The name of the sleep in TimeoutBudgets
+     * @param defaultTime The time to sleep without an override, in milliseconds
+     * @throws InterruptedException
+     */
+    public static void sleep(String budgetName, int defaultTime) throws InterruptedException {
+        StepTracer.begin(StepTracer.CATEGORY_SLEEP, budgetName);
+        try {
+            clock.sleep(TimeoutBudgets.getInstance().getOverride(budgetName, defaultTime));
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Find and open the app while the push sender warms up its connections in the background
+     * @param appName The name of the app to open
+     * @param packageName The package name of the app to open
+     * @param pushSender The specified push sender to warm up
+     * @param connections The number of connections to have ready
+     * @return <code>true</code> if app was opened, otherwise <code>false</code>
+     * @throws UiObjectNotFoundException
+     * @throws InterruptedException
+     */
+    public static boolean openApp(String appName, String packageName, PushSender pushSender, int connections) throws UiObjectNotFoundException, InterruptedException {
+        pushSender.warmUp(connections);
+        return openApp(appName, packageName);
     }
 
     /**
@@ -65,94 +157,135 @@ public class AutomatorUtils {
      * @throws InterruptedException
      */
     public static boolean openApp(String appName, String packageName) throws UiObjectNotFoundException, InterruptedException {
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "openApp");
+        try {
+            UiDevice device = UiDevice.getInstance();
 
-        UiDevice device = UiDevice.getInstance();
+            try {
+                device.wakeUp();
+            } catch (RemoteException e1) {
+                // We're probably doomed, but leave a note.
+                e1.printStackTrace();
+            }
 
-        try {
-            device.wakeUp();
-        } catch (RemoteException e1) {
-            // We're probably doomed, but leave a note.
-            e1.printStackTrace();
-        }
+            // Simulate a short press on the HOME button.
+            device.pressHome();
 
-        // Simulate a short press on the HOME button.
-        device.pressHome();
+            // Hit it a few times to bypass the welcome screen
+            device.pressHome();
+            device.pressHome();
 
-        // Hit it a few times to bypass the welcome screen
-        device.pressHome();
-        device.pressHome();
+            // If a semi-transparent welcome help overlay exists,
+            // click the OK button to dismiss it.
+            UiObject okDismissHelpOverlayButton = new UiObject(new UiSelector().text("OK"));
+            if (okDismissHelpOverlayButton.exists()) {
+                okDismissHelpOverlayButton.click();
+            }
 
-        // If a semi-transparent welcome help overlay exists,
-        // click the OK button to dismiss it.
-        UiObject okDismissHelpOverlayButton = new UiObject(new UiSelector().text("OK"));
-        if (okDismissHelpOverlayButton.exists()) {
-            okDismissHelpOverlayButton.click();
-        }
+            // We're now in the home screen. Next, we want to simulate
+            // a user bringing up the All Apps screen.
+            // If you use the uiautomatorviewer tool to capture a snapshot
+            // of the Home screen, notice that the All Apps button's
+            // content-description property has the value "Apps".  We can
+            // use this property to create a UiSelector to find the button.
+            UiObject allAppsButton = new UiObject(new UiSelector().description("Apps"));
+            waitForUiObjectsToExist("ALL_APPS_BUTTON_WAIT_TIME", ALL_APPS_BUTTON_WAIT_TIME, allAppsButton);
+            // Simulate a click to bring up the All Apps screen.
+            StepTracer.begin(StepTracer.CATEGORY_WAIT, "clickAndWaitForNewWindow");
+            try {
+                allAppsButton.clickAndWaitForNewWindow();
+            } finally {
+                StepTracer.end();
+            }
 
-        // We're now in the home screen. Next, we want to simulate
-        // a user bringing up the All Apps screen.
-        // If you use the uiautomatorviewer tool to capture a snapshot
-        // of the Home screen, notice that the All Apps button's
-        // content-description property has the value "Apps".  We can
-        // use this property to create a UiSelector to find the button.
-        UiObject allAppsButton = new UiObject(new UiSelector().description("Apps"));
-        waitForUiObjectsToExist(ALL_APPS_BUTTON_WAIT_TIME, allAppsButton);
-        // Simulate a click to bring up the All Apps screen.
-        allAppsButton.clickAndWaitForNewWindow();
-
-        // In the All Apps screen, the Settings app is located in
-        // the Apps tab. To simulate the user bringing up the Apps tab,
-        // we create a UiSelector to find a tab with the text
-        // label "Apps".
-        UiObject appsTab = new UiObject(new UiSelector().text("Apps"));
-
-        // Simulate a click to enter the Apps tab.
-        appsTab.click();
-
-        // If a semi-transparent welcome help overlay exists,
-        // click the OK button to dismiss it.
-        okDismissHelpOverlayButton = new UiObject(new UiSelector().text("OK"));
-        if (okDismissHelpOverlayButton.exists()) {
-            okDismissHelpOverlayButton.click();
-        }
+            // In the All Apps screen, the Settings app is located in
+            // the Apps tab. To simulate the user bringing up the Apps tab,
+            // we create a UiSelector to find a tab with the text
+            // label "Apps".
+            UiObject appsTab = new UiObject(new UiSelector().text("Apps"));
+
+            // Simulate a click to enter the Apps tab.
+            appsTab.click();
+
+            // If a semi-transparent welcome help overlay exists,
+            // click the OK button to dismiss it.
+            okDismissHelpOverlayButton = new UiObject(new UiSelector().text("OK"));
+            if (okDismissHelpOverlayButton.exists()) {
+                okDismissHelpOverlayButton.click();
+            }
 
-        // Next, in the apps tabs, we can simulate a user swiping until
-        // they come to the Settings app icon.  Since the container view
-        // is scrollable, we can use a UiScrollable object.
-        UiScrollable appViews = new UiScrollable(new UiSelector().scrollable(true));
+            // Next, in the apps tabs, we can simulate a user swiping until
+            // they come to the Settings app icon.  Since the container view
+            // is scrollable, we can use a UiScrollable object.
+            UiScrollable appViews = new UiScrollable(new UiSelector().scrollable(true));
 
-        // Set the swiping mode to horizontal (the default is vertical)
-        appViews.setAsHorizontalList();
+            // Set the swiping mode to horizontal (the default is vertical)
+            appViews.setAsHorizontalList();
 
-        // Create a UiSelector to find the Settings app and simulate
-        // a user click to launch the app.
-        UiObject settingsApp = appViews.getChildByText(new UiSelector().className(android.widget.TextView.class.getName()), appName);
-        settingsApp.clickAndWaitForNewWindow();
+            // Create a UiSelector to find the Settings app and simulate
+            // a user click to launch the app.
+            StepTracer.begin(StepTracer.CATEGORY_SCROLL, "getChildByText");
+            UiObject settingsApp;
+            try {
+                settingsApp = appViews.getChildByText(new UiSelector().className(android.widget.TextView.class.getName()), appName);
+            } finally {
+                StepTracer.end();
+            }
+            StepTracer.begin(StepTracer.CATEGORY_WAIT, "clickAndWaitForNewWindow");
+            try {
+                settingsApp.clickAndWaitForNewWindow();
+            } finally {
+                StepTracer.end();
+            }
 
-        // Validate that the package name is the expected one
-        UiObject pushSampleValidation = new UiObject(new UiSelector().packageName(packageName));
-        return pushSampleValidation.exists();
+            // Validate that the package name is the expected one
+            UiObject pushSampleValidation = new UiObject(new UiSelector().packageName(packageName));
+            return pushSampleValidation.exists();
+        } finally {
+            StepTracer.end();
+        }
     }
 
     /**
-     * Clears all the notifications in the notification area
+     * Clears all the notifications in the notification area, opening it first if needed
      * @throws UiObjectNotFoundException
      */
     public static void clearNotifications() throws UiObjectNotFoundException {
-        // Click the clear all notifications button
-        UiObject clearButton = new UiObject(new UiSelector().description("Clear all notifications."));
+        getNotificationShade().clear();
+    }
 
-        if (clearButton.exists()) {
-            clearButton.click();
+    /**
+     * Open the notification area and wait for it to appear
+     */
+    public static void openNotificationArea() {
+        getNotificationShade().open();
+    }
+
+    /**
+     * Gets the shared notification shade controller
+     * @return The notification shade
+     */
+    public static synchronized NotificationShade getNotificationShade() {
+        if (notificationShade == null) {
+            notificationShade = new NotificationShade();
         }
+        return notificationShade;
     }
 
     /**
-     * Open the notification area
+     * Sets the clock used by the wait loops of the helpers, so tests can run timeouts without waiting
+     * @param clock The specified clock
      */
-    public static void openNotificationArea() {
-        UiDevice device = UiDevice.getInstance();
-        device.swipe(50, 2, 50, device.getDisplayHeight(), 5);
+    public static void setClock(Clock clock) {
+        AutomatorUtils.clock = clock;
+    }
+
+    /**
+     * Gets the clock used by the wait loops of the helpers
+     * @return The clock
+     */
+    public static Clock getClock() {
+        return clock;
     }
 
     /**
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.automatorutils;
+
+import android.util.Log;
+import android.util.Xml;
+
+import com.android.uiautomator.core.UiDevice;
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiObjectNotFoundException;
+import com.urbanairship.pushsender.Clock;
+import com.urbanairship.pushsender.StepTracer;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Detects UI changes by hashing the structure of the current window hierarchy.
+ * The hierarchy dump is streamed through a pull parser and folded into the hash
+ * node by node, so no DOM is built.
+ *
+ */
+public class HierarchyChangeDetector {
+    private static final String TAG = "HierarchyChangeDetector";
+    private static final String DUMP_FILE_NAME = "automator-hierarchy-hash.xml";
+
+    // UiDevice.dumpWindowHierarchy writes to this directory
+    private static final File DUMP_DIRECTORY = new File("/data/local/tmp");
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static int POLL_DELAY = 100;  // 0.1 seconds
+
+    private final UiDevice device;
+    private long lastHash = FNV_OFFSET_BASIS;
+    private long lastDumpTime = 0;
+
+    /**
+     * Constructor for HierarchyChangeDetector
+     */
+    public HierarchyChangeDetector() {
+        this(UiDevice.getInstance());
+    }
+
+    /**
+     * Constructor for HierarchyChangeDetector
+     * @param device The device to watch
+     */
+    public HierarchyChangeDetector(UiDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Computes the hash of the current window hierarchy
+     * @return The hash, the same value is returned while the UI is unchanged
+     */
+    public long computeHash() {
+        Clock clock = AutomatorUtils.getClock();
+        long startTime = clock.currentTimeMillis();
+        File dumpFile = new File(DUMP_DIRECTORY, DUMP_FILE_NAME);
+        dumpFile.delete();
+        device.dumpWindowHierarchy(DUMP_FILE_NAME);
+
+        long hash = FNV_OFFSET_BASIS;
+        if (dumpFile.exists()) {
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(dumpFile));
+                try {
+                    hash = hash(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read window hierarchy", e);
+            }
+        }
+
+        lastHash = hash;
+        lastDumpTime = clock.currentTimeMillis() - startTime;
+        return hash;
+    }
+
+    /**
+     * Gets the hash computed by the last call to computeHash or a wait
+     * @return The last hash
+     */
+    public long getLastHash() {
+        return lastHash;
+    }
+
+    /**
+     * Gets how long to sleep between hashes. Dumping a large hierarchy can take longer than
+     * POLL_DELAY, so the waits sleep at least as long as the last dump took and spend no more
+     * than about half of their time dumping.
+     * @return The delay in milliseconds
+     */
+    private long getPollDelay() {
+        return Math.max(POLL_DELAY, lastDumpTime);
+    }
+
+    /**
+     * Waits for the window hierarchy to differ from an earlier hash
+     * @param since The hash to compare against, usually taken before an action
+     * @param timeInMilliseconds Time to wait for the change
+     * @return <code>true</code> if the hierarchy changed, otherwise <code>false</code>
+     * @throws InterruptedException
+     */
+    public boolean waitForChange(long since, int timeInMilliseconds) throws InterruptedException {
+        StepTracer.begin(StepTracer.CATEGORY_WAIT, "waitForChange");
+        try {
+            Clock clock = AutomatorUtils.getClock();
+            long startTime = clock.currentTimeMillis();
+            while (true) {
+                if (computeHash() != since) {
+                    return true;
+                }
+
+                long remainingTime = timeInMilliseconds - (clock.currentTimeMillis() - startTime);
+                if (remainingTime <= 0) {
+                    return false;
+                }
+                clock.sleep(Math.min(getPollDelay(), remainingTime));
+            }
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Waits for the window hierarchy to stay unchanged for a quiet period
+     * @param quietPeriod Time the hierarchy must stay unchanged, in milliseconds
+     * @param timeInMilliseconds Time to wait for the hierarchy to settle
+     * @return <code>true</code> if the hierarchy settled, otherwise <code>false</code>
+     * @throws InterruptedException
+     */
+    public boolean waitForStable(int quietPeriod, int timeInMilliseconds) throws InterruptedException {
+        StepTracer.begin(StepTracer.CATEGORY_WAIT, "waitForStable");
+        try {
+            Clock clock = AutomatorUtils.getClock();
+            long startTime = clock.currentTimeMillis();
+            long stableHash = computeHash();
+            long stableSince = clock.currentTimeMillis();
+            while (true) {
+                long now = clock.currentTimeMillis();
+                if (now - stableSince >= quietPeriod) {
+                    return true;
+                }
+                if (now - startTime >= timeInMilliseconds) {
+                    return false;
+                }
+
+                clock.sleep(Math.min(getPollDelay(), quietPeriod - (now - stableSince)));
+                long hash = computeHash();
+                if (hash != stableHash) {
+                    stableHash = hash;
+                    stableSince = clock.currentTimeMillis();
+                }
+            }
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Clicks the ui object, then waits for the UI to change and settle
+     * @param uiObject The ui object to click
+     * @param quietPeriod Time the hierarchy must stay unchanged, in milliseconds
+     * @param timeInMilliseconds Time to wait for the change and for the hierarchy to settle
+     * @return <code>true</code> if the UI changed and settled, otherwise <code>false</code>
+     * @throws UiObjectNotFoundException
+     * @throws InterruptedException
+     */
+    public boolean clickAndWaitForUpdate(UiObject uiObject, int quietPeriod, int timeInMilliseconds) throws UiObjectNotFoundException, InterruptedException {
+        long before = computeHash();
+        Clock clock = AutomatorUtils.getClock();
+        long startTime = clock.currentTimeMillis();
+        uiObject.click();
+
+        if (!waitForChange(before, timeInMilliseconds)) {
+            return false;
+        }
+
+        int remainingTime = (int) Math.max(0, timeInMilliseconds - (clock.currentTimeMillis() - startTime));
+        return waitForStable(quietPeriod, remainingTime);
+    }
+
+    /**
+     * Folds the tags and attributes of a hierarchy dump into a 64-bit FNV-1a hash
+     * @param in The hierarchy dump
+     * @return The hash
+     * @throws IOException
+     */
+    static long hash(InputStream in) throws IOException {
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, "UTF-8");
+
+            long hash = FNV_OFFSET_BASIS;
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    hash = fold(hash, "<");
+                    hash = fold(hash, parser.getName());
+                    for (int i = 0; i < parser.getAttributeCount(); i++) {
+                        hash = fold(hash, " ");
+                        hash = fold(hash, parser.getAttributeName(i));
+                        hash = fold(hash, "=");
+                        hash = fold(hash, parser.getAttributeValue(i));
+                    }
+                } else if (event == XmlPullParser.END_TAG) {
+                    hash = fold(hash, ">");
+                }
+            }
+            return hash;
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed window hierarchy", e);
+        }
+    }
+
+    private static long fold(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.automatorutils;
+
+import android.util.Log;
+
+import com.android.uiautomator.core.UiDevice;
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiObjectNotFoundException;
+import com.android.uiautomator.core.UiScrollable;
+import com.android.uiautomator.core.UiSelector;
+import com.urbanairship.pushsender.Clock;
+import com.urbanairship.pushsender.StepTracer;
+
+import java.lang.reflect.Method;
+
+/**
+ * Controller for the notification shade that tracks whether it is open.
+ * From API 18 the shade is found by the resource ids of its SystemUI views. UiSelector.resourceId
+ * doesn't exist on API 16 and 17, and there the expanded shade looks like the Recents panel apart
+ * from the content descriptions of its header controls, so those are used instead. The default
+ * descriptions are the English ones; set the device's with setDescriptions on other locales.
+ *
+ */
+public class NotificationShade {
+    private static final String TAG = "NotificationShade";
+    private static final String SYSTEM_UI_PACKAGE = "com.android.systemui";
+    private static final String CLEAR_ALL_DESCRIPTION = "Clear all notifications.";
+    private static final String CLEAR_ALL_ID = "clear_all_button";
+
+    // Views that only exist in the expanded shade, other SystemUI windows such as Recents don't have them
+    private static final String[] SHADE_IDS = { "notification_panel", "header" };
+    private static final String[] SHADE_DESCRIPTIONS = { "System settings.", "Quick settings.", CLEAR_ALL_DESCRIPTION };
+
+    private static int SHADE_WAIT_TIME = 5000;  // 5 seconds
+    private static int SHADE_CLOSE_WAIT_TIME = 5000;  // 5 seconds
+    private static int SHADE_CLEAR_WAIT_TIME = 5000;  // 5 seconds
+    private static int SWIPE_STEPS = 5;
+    private static int POLL_DELAY = 100;  // 100 milliseconds
+
+    private final UiDevice device;
+    private String clearAllDescription = CLEAR_ALL_DESCRIPTION;
+    private String[] shadeDescriptions = SHADE_DESCRIPTIONS;
+    private boolean open = false;
+    private long lastTransitionTime = 0;
+
+    /**
+     * Constructor for NotificationShade
+     */
+    public NotificationShade() {
+        this(UiDevice.getInstance());
+    }
+
+    /**
+     * Constructor for NotificationShade
+     * @param device The device to control
+     */
+    public NotificationShade(UiDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Sets the content descriptions used to find the shade where resource ids aren't available
+     * @param clearAllDescription The description of the clear all control
+     * @param shadeDescriptions The descriptions of controls that only exist in the expanded shade
+     */
+    public void setDescriptions(String clearAllDescription, String... shadeDescriptions) {
+        this.clearAllDescription = clearAllDescription;
+        this.shadeDescriptions = shadeDescriptions;
+    }
+
+    /**
+     * Checks if the shade is open. The tracked state is updated from the screen so a shade
+     * opened or closed outside of this controller is noticed.
+     * @return <code>true</code> if the shade is open, otherwise <code>false</code>
+     */
+    public boolean isOpen() {
+        open = isShadeShowing();
+        return open;
+    }
+
+    /**
+     * Opens the shade and waits for its window to appear. Does nothing if the shade is already open.
+     * @return <code>true</code> if the shade is open, otherwise <code>false</code>
+     */
+    public boolean open() {
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "NotificationShade.open");
+        try {
+            if (isOpen()) {
+                lastTransitionTime = 0;
+                return true;
+            }
+
+            Clock clock = AutomatorUtils.getClock();
+            long startTime = clock.currentTimeMillis();
+            if (!openThroughDevice()) {
+                device.swipe(device.getDisplayWidth() / 2, 2, device.getDisplayWidth() / 2, device.getDisplayHeight(), SWIPE_STEPS);
+            }
+            TimeoutBudgets budgets = TimeoutBudgets.getInstance();
+            long waitStartTime = clock.currentTimeMillis();
+            open = waitForShade(true, budgets.getBudget("SHADE_WAIT_TIME", SHADE_WAIT_TIME));
+            AutomatorUtils.recordWait("SHADE_WAIT_TIME", clock.currentTimeMillis() - waitStartTime, open);
+            lastTransitionTime = clock.currentTimeMillis() - startTime;
+
+            Log.i(TAG, "Open took " + lastTransitionTime + "ms, open: " + open);
+            return open;
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Closes the shade and waits for its window to go away. Does nothing if the shade is already closed.
+     * @return <code>true</code> if the shade is closed, otherwise <code>false</code>
+     */
+    public boolean close() {
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "NotificationShade.close");
+        try {
+            if (!isOpen()) {
+                lastTransitionTime = 0;
+                return true;
+            }
+
+            Clock clock = AutomatorUtils.getClock();
+            long startTime = clock.currentTimeMillis();
+            device.pressBack();
+            long waitStartTime = clock.currentTimeMillis();
+            boolean closed = waitForShade(false, TimeoutBudgets.getInstance().getBudget("SHADE_CLOSE_WAIT_TIME", SHADE_CLOSE_WAIT_TIME));
+            AutomatorUtils.recordWait("SHADE_CLOSE_WAIT_TIME", clock.currentTimeMillis() - waitStartTime, closed);
+            open = !closed;
+            lastTransitionTime = clock.currentTimeMillis() - startTime;
+
+            Log.i(TAG, "Close took " + lastTransitionTime + "ms, open: " + open);
+            return !open;
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Opens the shade if needed, scrolls to the clear all control and clicks it
+     * @return <code>true</code> if the clear all control was clicked, otherwise <code>false</code>
+     * @throws UiObjectNotFoundException
+     */
+    public boolean clear() throws UiObjectNotFoundException {
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "NotificationShade.clear");
+        try {
+            if (!open()) {
+                return false;
+            }
+
+            Clock clock = AutomatorUtils.getClock();
+            long startTime = clock.currentTimeMillis();
+            UiSelector clearSelector = getClearAllSelector();
+            UiObject clearButton = new UiObject(clearSelector);
+
+            if (!clearButton.exists()) {
+                // The button sits below the notifications, so it may be off screen
+                UiScrollable notificationList = new UiScrollable(new UiSelector().packageName(SYSTEM_UI_PACKAGE).scrollable(true));
+                if (notificationList.exists()) {
+                    StepTracer.begin(StepTracer.CATEGORY_SCROLL, "scrollIntoView");
+                    try {
+                        notificationList.scrollIntoView(clearSelector);
+                    } finally {
+                        StepTracer.end();
+                    }
+                }
+            }
+
+            boolean cleared = false;
+            if (clearButton.exists()) {
+                cleared = clearButton.click();
+            }
+
+            // Clearing everything usually closes the shade as well. Ongoing notifications can't be
+            // cleared and keep it open, so a shade that stays open isn't recorded as a slow wait.
+            if (cleared) {
+                long waitStartTime = clock.currentTimeMillis();
+                if (waitForShade(false, TimeoutBudgets.getInstance().getBudget("SHADE_CLEAR_WAIT_TIME", SHADE_CLEAR_WAIT_TIME))) {
+                    AutomatorUtils.recordWait("SHADE_CLEAR_WAIT_TIME", clock.currentTimeMillis() - waitStartTime, true);
+                }
+            }
+            open = isShadeShowing();
+            lastTransitionTime = clock.currentTimeMillis() - startTime;
+
+            Log.i(TAG, "Clear took " + lastTransitionTime + "ms, cleared: " + cleared);
+            return cleared;
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Gets how long the last open, close or clear took
+     * @return The time in milliseconds, or 0 if the last call was skipped
+     */
+    public long getLastTransitionTime() {
+        return lastTransitionTime;
+    }
+
+    /**
+     * Checks the screen for the expanded shade
+     * @return <code>true</code> if a shade header control is showing, otherwise <code>false</code>
+     */
+    private boolean isShadeShowing() {
+        for (String id : SHADE_IDS) {
+            UiSelector selector = getResourceIdSelector(id);
+            if (selector == null) {
+                break;
+            }
+            if (new UiObject(selector).exists()) {
+                return true;
+            }
+        }
+
+        // Also covers API 18 builds whose SystemUI uses other ids
+        for (String description : shadeDescriptions) {
+            if (new UiObject(new UiSelector().packageName(SYSTEM_UI_PACKAGE).description(description)).exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the selector for the clear all control, by resource id unless only the description matches
+     * @return The selector
+     */
+    private UiSelector getClearAllSelector() {
+        UiSelector byDescription = new UiSelector().description(clearAllDescription);
+        UiSelector byId = getResourceIdSelector(CLEAR_ALL_ID);
+        if (byId == null || (!new UiObject(byId).exists() && new UiObject(byDescription).exists())) {
+            return byDescription;
+        }
+        return byId;
+    }
+
+    /**
+     * Selects a SystemUI view by resource id with UiSelector.resourceId, which is only available from API 18
+     * @param id The specified view id, without the package
+     * @return The selector, or null if the platform can't select by resource id
+     */
+    private static UiSelector getResourceIdSelector(String id) {
+        try {
+            Method resourceId = UiSelector.class.getMethod("resourceId", String.class);
+            return (UiSelector) resourceId.invoke(new UiSelector(), SYSTEM_UI_PACKAGE + ":id/" + id);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the expanded shade to appear or go away
+     * @param showing <code>true</code> to wait for the shade to appear, <code>false</code> to wait for it to go away
+     * @param timeInMilliseconds Time to wait
+     * @return <code>true</code> if the shade reached the state, otherwise <code>false</code>
+     */
+    private boolean waitForShade(boolean showing, long timeInMilliseconds) {
+        Clock clock = AutomatorUtils.getClock();
+        long startTime = clock.currentTimeMillis();
+        while (true) {
+            if (isShadeShowing() == showing) {
+                return true;
+            }
+
+            long remainingTime = timeInMilliseconds - (clock.currentTimeMillis() - startTime);
+            if (remainingTime <= 0) {
+                return false;
+            }
+
+            try {
+                clock.sleep(Math.min(POLL_DELAY, remainingTime));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Opens the shade with UiDevice.openNotification, which is only available from API 18
+     * @return <code>true</code> if the device API opened the shade, otherwise <code>false</code>
+     */
+    private boolean openThroughDevice() {
+        try {
+            Method openNotification = UiDevice.class.getMethod("openNotification");
+            return Boolean.TRUE.equals(openNotification.invoke(device));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
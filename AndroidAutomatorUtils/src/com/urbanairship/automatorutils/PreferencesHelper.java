@@ -8,6 +8,7 @@ import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiScrollable;
 import com.android.uiautomator.core.UiSelector;
+import com.urbanairship.pushsender.StepTracer;
 
 /**
  * Helper class to test the preferences
@@ -18,6 +19,10 @@ public class PreferencesHelper {
     private static int KEYBOARD_WAIT_TIME = 3000;  // 3 seconds
     private static int UI_OBJECTS_WAIT_TIME = 1000;  // 1 second
     private static int SET_ALIAS_TEXT_WAIT_TIME = 3000;  // 3 seconds
+    private static int DIALOG_WAIT_TIME = 3000;  // 3 seconds
+    private static int UI_QUIET_PERIOD = 300;  // 0.3 seconds
+
+    private final HierarchyChangeDetector changeDetector = new HierarchyChangeDetector();
 
     private UiSelector getPreferenceSummarySelector(String description) {
         return new UiSelector().description(description)
@@ -40,9 +45,14 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     public boolean isPreferenceViewEnabled(String setting) throws UiObjectNotFoundException, InterruptedException {
-        UiObject preferenceView = new UiObject(new UiSelector().description(setting));
-        scrollPreferenceIntoView(setting);
-        return preferenceView.isEnabled();
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "isPreferenceViewEnabled");
+        try {
+            UiObject preferenceView = new UiObject(new UiSelector().description(setting));
+            scrollPreferenceIntoView(setting);
+            return preferenceView.isEnabled();
+        } finally {
+            StepTracer.end();
+        }
     }
 
     /**
@@ -52,15 +62,20 @@ public class PreferencesHelper {
      * @throws Exception
      */
     public void setPreferenceCheckBoxEnabled(String setting, boolean enabled) throws Exception {
-        // Scroll to the preference if its not visible in the list
-        scrollPreferenceIntoView(setting);
-
-        UiObject preference = new UiObject(new UiSelector().description(setting));
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, preference);
-        UiObject preferenceCheckBox =  preference.getChild(new UiSelector().className(android.widget.CheckBox.class));
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, preferenceCheckBox);
-        if (preferenceCheckBox.isChecked() != enabled) {
-            preferenceCheckBox.click();
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "setPreferenceCheckBoxEnabled");
+        try {
+            // Scroll to the preference if its not visible in the list
+            scrollPreferenceIntoView(setting);
+
+            UiObject preference = new UiObject(new UiSelector().description(setting));
+            AutomatorUtils.waitForUiObjectsToExist("PREFERENCE_WAIT_TIME", UI_OBJECTS_WAIT_TIME, preference);
+            UiObject preferenceCheckBox =  preference.getChild(new UiSelector().className(android.widget.CheckBox.class));
+            AutomatorUtils.waitForUiObjectsToExist("PREFERENCE_CHECK_BOX_WAIT_TIME", UI_OBJECTS_WAIT_TIME, preferenceCheckBox);
+            if (preferenceCheckBox.isChecked() != enabled) {
+                preferenceCheckBox.click();
+            }
+        } finally {
+            StepTracer.end();
         }
     }
 
@@ -72,12 +87,17 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     public boolean getCheckBoxSetting(String setting) throws UiObjectNotFoundException, InterruptedException {
-        scrollPreferenceIntoView(setting);
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "getCheckBoxSetting");
+        try {
+            scrollPreferenceIntoView(setting);
 
-        UiObject settingCheckBox = new UiObject(new UiSelector().description(setting));
+            UiObject settingCheckBox = new UiObject(new UiSelector().description(setting));
 
-        settingCheckBox.click();
-        return settingCheckBox.isChecked();
+            settingCheckBox.click();
+            return settingCheckBox.isChecked();
+        } finally {
+            StepTracer.end();
+        }
     }
 
     /**
@@ -87,22 +107,27 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     public void changeTimePreferenceValue(String setting) throws UiObjectNotFoundException, InterruptedException {
-        // Scroll to the preference if its not visible in the list
-        scrollPreferenceIntoView(setting);
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "changeTimePreferenceValue");
+        try {
+            // Scroll to the preference if its not visible in the list
+            scrollPreferenceIntoView(setting);
 
-        UiObject timePicker = new UiObject(new UiSelector().description(setting));
-        UiObject okButton = new UiObject(new UiSelector().className("android.widget.Button").text("OK"));
+            UiObject timePicker = new UiObject(new UiSelector().description(setting));
+            UiObject okButton = new UiObject(new UiSelector().className("android.widget.Button").text("OK"));
 
-        timePicker.click();
+            timePicker.click();
 
-        // Change the time
-        for (int i = 0; i < 3; i++) {
-            UiObject numberPicker = new UiObject(new UiSelector().className("android.widget.NumberPicker").index(i));
-            UiObject button = numberPicker.getChild(new UiSelector().className("android.widget.Button"));
-            button.click();
-        }
+            // Change the time
+            for (int i = 0; i < 3; i++) {
+                UiObject numberPicker = new UiObject(new UiSelector().className("android.widget.NumberPicker").index(i));
+                UiObject button = numberPicker.getChild(new UiSelector().className("android.widget.Button"));
+                button.click();
+            }
 
-        okButton.click();
+            okButton.click();
+        } finally {
+            StepTracer.end();
+        }
     }
 
     /**
@@ -113,17 +138,28 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     public String getPreferenceSummary(String setting) throws UiObjectNotFoundException, InterruptedException {
-        String summaryString = "";
-        // Scroll to the preference if its not visible in the list
-        UiScrollable listView = new UiScrollable(new UiSelector().className("android.widget.ListView"));
-        UiSelector summary = this.getPreferenceSummarySelector(setting);
-        listView.scrollIntoView(summary);
-        UiObject summaryText = new UiObject(summary);
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, summaryText);
-        if (summaryText.exists()) {
-            summaryString = summaryText.getText();
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "getPreferenceSummary");
+        try {
+            String summaryString = "";
+            // Scroll to the preference if its not visible in the list
+            UiScrollable listView = new UiScrollable(new UiSelector().className("android.widget.ListView"));
+            UiSelector summary = this.getPreferenceSummarySelector(setting);
+            StepTracer.begin(StepTracer.CATEGORY_SCROLL, "scrollIntoView");
+            try {
+                listView.scrollIntoView(summary);
+            } finally {
+                StepTracer.end();
+            }
+            UiObject summaryText = new UiObject(summary);
+            // Not every preference has a summary
+            AutomatorUtils.waitForOptionalUiObjectsToExist("PREFERENCE_SUMMARY_WAIT_TIME", UI_OBJECTS_WAIT_TIME, summaryText);
+            if (summaryText.exists()) {
+                summaryString = summaryText.getText();
+            }
+            return summaryString;
+        } finally {
+            StepTracer.end();
         }
-        return summaryString;
     }
 
     /**
@@ -133,48 +169,53 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     public void setAlias(String alias) throws UiObjectNotFoundException, InterruptedException {
-        // Test set alias
-        // Scroll to the preference if its not visible in the list
-        scrollPreferenceIntoView("SET_ALIAS");
-
-        UiObject setAlias = new UiObject(new UiSelector().description("SET_ALIAS"));
-        UiObject aliasStringDisplayed = new UiObject(new UiSelector().text(alias));
-        boolean aliasExist = false;
-        if (aliasStringDisplayed.exists()) {
-            aliasExist = true;
-        }
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "setAlias");
+        try {
+            // Test set alias
+            // Scroll to the preference if its not visible in the list
+            scrollPreferenceIntoView("SET_ALIAS");
+
+            UiObject setAlias = new UiObject(new UiSelector().description("SET_ALIAS"));
+            UiObject aliasStringDisplayed = new UiObject(new UiSelector().text(alias));
+            boolean aliasExist = false;
+            if (aliasStringDisplayed.exists()) {
+                aliasExist = true;
+            }
 
-        setAlias.click();
-        UiObject aliasEditText = new UiObject(new UiSelector().text(alias));
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, aliasEditText);
-
-        // Check if an alias already exist
-        if (aliasExist) {
-            aliasEditText.click();
-            UiObject deleteAlias = new UiObject(new UiSelector().text("Delete"));
-            if (deleteAlias.exists()) {
-                // Alias exist, so clear it
-                deleteAlias.click();
-                UiObject okButton = new UiObject(new UiSelector().text("OK"));
-                okButton.click();
-                setAlias.click();
+            // Continue as soon as the dialog has opened and settled
+            UiObject aliasEditText = new UiObject(new UiSelector().text(alias));
+            clickAndWaitForUpdate(setAlias, aliasEditText);
+
+            // Check if an alias already exist
+            if (aliasExist) {
+                aliasEditText.click();
+                UiObject deleteAlias = new UiObject(new UiSelector().text("Delete"));
+                if (deleteAlias.exists()) {
+                    // Alias exist, so clear it
+                    deleteAlias.click();
+                    UiObject okButton = new UiObject(new UiSelector().text("OK"));
+                    okButton.click();
+                    clickAndWaitForUpdate(setAlias, new UiObject(new UiSelector().className("android.widget.EditText")));
+                }
             }
-        }
 
-        UiObject setAliasText = new UiObject(new UiSelector().className("android.widget.EditText"));
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, setAliasText);
-        setAliasText.click();
+            UiObject setAliasText = new UiObject(new UiSelector().className("android.widget.EditText"));
+            AutomatorUtils.waitForUiObjectsToExist("ALIAS_DIALOG_WAIT_TIME", UI_OBJECTS_WAIT_TIME, setAliasText);
+            setAliasText.click();
 
-        // Wait for keyboard to pop up
-        Thread.sleep(KEYBOARD_WAIT_TIME);
+            // Wait for keyboard to pop up
+            AutomatorUtils.sleep("KEYBOARD_WAIT_TIME", KEYBOARD_WAIT_TIME);
 
-        // Set the alias
-        AutomatorUtils.waitForUiObjectsToExist(SET_ALIAS_TEXT_WAIT_TIME, setAliasText);
-        setAliasText.setText(alias);
+            // Set the alias
+            AutomatorUtils.waitForUiObjectsToExist("SET_ALIAS_TEXT_WAIT_TIME", SET_ALIAS_TEXT_WAIT_TIME, setAliasText);
+            setAliasText.setText(alias);
 
-        // save
-        UiObject okButton = new UiObject(new UiSelector().text("OK"));
-        okButton.click();
+            // save
+            UiObject okButton = new UiObject(new UiSelector().text("OK"));
+            okButton.click();
+        } finally {
+            StepTracer.end();
+        }
     }
 
     /**
@@ -184,42 +225,63 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     public void addTags(String tags) throws UiObjectNotFoundException, InterruptedException {
-        // Scroll to the preference if its not visible in the list
-        scrollPreferenceIntoView("ADD_TAGS");
-
-        UiObject okButton = new UiObject(new UiSelector().text("OK"));
-        UiObject addTags = new UiObject(new UiSelector().description("ADD_TAGS"));
-        addTags.click();
+        StepTracer.begin(StepTracer.CATEGORY_HELPER, "addTags");
+        try {
+            // Scroll to the preference if its not visible in the list
+            scrollPreferenceIntoView("ADD_TAGS");
+
+            UiObject okButton = new UiObject(new UiSelector().text("OK"));
+            UiObject addTags = new UiObject(new UiSelector().description("ADD_TAGS"));
+            // Check if a tag already exist
+            UiObject tagsListView = new UiObject(new UiSelector().className("android.widget.ListView"));
+
+            // Continue as soon as the dialog has opened and settled
+            clickAndWaitForUpdate(addTags, tagsListView);
+
+            if (tagsListView.exists()) {
+                UiObject tagLinearLayout = tagsListView.getChild(new UiSelector().className("android.widget.LinearLayout"));
+                UiObject tagDeleteButton = tagLinearLayout.getChild(new UiSelector().className("android.widget.ImageButton"));
+                tagDeleteButton.click();
+                okButton = new UiObject(new UiSelector().text("OK"));
+                okButton.click();
+                clickAndWaitForUpdate(addTags, new UiObject(new UiSelector().className("android.widget.EditText")));
+            }
 
-        // Check if a tag already exist
-        UiObject tagsListView = new UiObject(new UiSelector().className("android.widget.ListView"));
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, tagsListView);
+            // Add tag
+            UiObject addTagsText = new UiObject(new UiSelector().className("android.widget.EditText"));
 
-        if (tagsListView.exists()) {
-            UiObject tagLinearLayout = tagsListView.getChild(new UiSelector().className("android.widget.LinearLayout"));
-            UiObject tagDeleteButton = tagLinearLayout.getChild(new UiSelector().className("android.widget.ImageButton"));
-            tagDeleteButton.click();
-            okButton = new UiObject(new UiSelector().text("OK"));
-            okButton.click();
-            addTags.click();
-        }
+            // Add first tag
+            addTagsText.click();
 
-        // Add tag
-        UiObject addTagsText = new UiObject(new UiSelector().className("android.widget.EditText"));
+            // Wait for keyboard to pop up
+            AutomatorUtils.sleep("KEYBOARD_WAIT_TIME", KEYBOARD_WAIT_TIME);
 
-        // Add first tag
-        addTagsText.click();
+            addTagsText.setText(tags);
+            UiObject addTagButton = new UiObject(new UiSelector().className("android.widget.ImageButton"));
 
-        // Wait for keyboard to pop up
-        Thread.sleep(KEYBOARD_WAIT_TIME);
+            // Wait for the tag list to update before saving
+            clickAndWaitForUpdate(addTagButton, tagsListView);
 
-        addTagsText.setText(tags);
-        UiObject addTagButton = new UiObject(new UiSelector().className("android.widget.ImageButton"));
-        addTagButton.click();
+            // Save first tag
+            okButton = new UiObject(new UiSelector().text("OK"));
+            okButton.click();
+        } finally {
+            StepTracer.end();
+        }
+    }
 
-        // Save first tag
-        okButton = new UiObject(new UiSelector().text("OK"));
-        okButton.click();
+    /**
+     * Clicks the ui object and waits for the UI to change and settle. If no settled change
+     * is seen, falls back to waiting for the ui object the click should bring up.
+     * @param uiObject The ui object to click
+     * @param expected The ui object expected after the click
+     * @throws UiObjectNotFoundException
+     * @throws InterruptedException
+     */
+    private void clickAndWaitForUpdate(UiObject uiObject, UiObject expected) throws UiObjectNotFoundException, InterruptedException {
+        if (!changeDetector.clickAndWaitForUpdate(uiObject, UI_QUIET_PERIOD, DIALOG_WAIT_TIME)) {
+            AutomatorUtils.waitForUiObjectsToExist("UI_OBJECTS_WAIT_TIME", UI_OBJECTS_WAIT_TIME, expected);
+        }
     }
 
     /**
@@ -229,8 +291,13 @@ public class PreferencesHelper {
      * @throws InterruptedException
      */
     private void scrollPreferenceIntoView(String setting) throws UiObjectNotFoundException, InterruptedException {
-        UiScrollable listView = new UiScrollable(new UiSelector().className("android.widget.ListView"));
-        AutomatorUtils.waitForUiObjectsToExist(UI_OBJECTS_WAIT_TIME, listView);
-        listView.scrollIntoView(getPreferenceTitleSelector(setting));
+        StepTracer.begin(StepTracer.CATEGORY_SCROLL, "scrollPreferenceIntoView");
+        try {
+            UiScrollable listView = new UiScrollable(new UiSelector().className("android.widget.ListView"));
+            AutomatorUtils.waitForUiObjectsToExist("PREFERENCE_LIST_WAIT_TIME", UI_OBJECTS_WAIT_TIME, listView);
+            listView.scrollIntoView(getPreferenceTitleSelector(setting));
+        } finally {
+            StepTracer.end();
+        }
     }
 }
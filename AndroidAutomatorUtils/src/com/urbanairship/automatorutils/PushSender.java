@@ -4,34 +4,33 @@
 
 package com.urbanairship.automatorutils;
 
-import android.util.Base64;
 import android.util.Log;
 
-import org.json.JSONArray;
+import com.urbanairship.pushsender.CircuitBreaker;
+import com.urbanairship.pushsender.CircuitOpenException;
+import com.urbanairship.pushsender.Clock;
+import com.urbanairship.pushsender.PushClient;
+import com.urbanairship.pushsender.PushPayloads;
+import com.urbanairship.pushsender.PushTransport;
+import com.urbanairship.pushsender.RichPushBody;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Map;
 
 /**
- * Helper class to send push notifications
+ * Helper class to send push notifications. Building, sending and retrying is done
+ * by the Android-free PushClient and PushPayloads in PushSenderCore.
  *
  */
 public class PushSender {
-    private final String masterSecret;
-    private final String appKey;
+    private final PushClient client;
     private final String broadcastUrl;
     private final String pushUrl;
 
     protected static String TAG = "PushSender";
 
-    private static int MAX_SEND_MESG_RETRIES = 3;
     private static int SEND_MESG_RETRY_DELAY = 3000;  // 3 seconds
 
     private static final String PUSH_BROADCAST_URL = "https://go.urbanairship.com/api/push/broadcast/";
@@ -54,8 +53,7 @@ public class PushSender {
      * @param pushUrl The URL for push messages (APIv3)
      */
     protected PushSender(String masterSecret, String appKey, String pushUrl) {
-        this.masterSecret = masterSecret;
-        this.appKey = appKey;
+        this.client = new PushClient(masterSecret, appKey);
         this.broadcastUrl = pushUrl;
         this.pushUrl = pushUrl;
     }
@@ -68,12 +66,77 @@ public class PushSender {
      * @param pushUrl The URL for push messages
      */
     protected PushSender(String masterSecret, String appKey, String broadcastUrl, String pushUrl) {
-        this.masterSecret = masterSecret;
-        this.appKey = appKey;
+        this.client = new PushClient(masterSecret, appKey);
         this.broadcastUrl = broadcastUrl;
         this.pushUrl = pushUrl;
     }
 
+    /**
+     * Sets the transport used to deliver messages
+     * @param transport The specified transport, for example a NioPushTransport for large fan-out sends
+     */
+    public void setTransport(PushTransport transport) {
+        client.setTransport(transport);
+    }
+
+    /**
+     * Gets the transport used to deliver messages
+     * @return The transport
+     */
+    public PushTransport getTransport() {
+        return client.getTransport();
+    }
+
+    /**
+     * Sets the circuit breaker that guards the push endpoints
+     * @param circuitBreaker The specified circuit breaker, shared by all senders by default
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        client.setCircuitBreaker(circuitBreaker);
+    }
+
+    /**
+     * Gets the circuit breaker that guards the push endpoints
+     * @return The circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return client.getCircuitBreaker();
+    }
+
+    /**
+     * Sets the clock used for retry delays, so tests can run retries without waiting. The
+     * circuit breaker keeps its own clock because it is shared by all senders by default; to
+     * run circuit recovery on the same clock, give this sender its own breaker with
+     * setCircuitBreaker and set the clock on that breaker.
+     * @param clock The specified clock
+     */
+    public void setClock(Clock clock) {
+        client.setClock(clock);
+    }
+
+    /**
+     * Gets the Android-free client that sends the messages
+     * @return The push client
+     */
+    public PushClient getClient() {
+        return client;
+    }
+
+    /**
+     * Message factory whose attempts go through sendMessageHelper, so subclasses
+     * that override it still see every attempt
+     */
+    protected abstract class SenderMessageFactory implements PushClient.MessageFactory {
+
+        public void sendMessage(String urlString, String message, String bodyPlaceholder, RichPushBody body, Map<String, String> requestProperties) throws IOException {
+            if (body == null) {
+                sendMessageHelper(urlString, message, requestProperties);
+            } else {
+                sendMessageHelper(urlString, message, bodyPlaceholder, body, requestProperties);
+            }
+        }
+    }
+
     /**
      * Builds the message to be sent
      * @param recipientString The string to append based on the type of push (user, alias, tag)
@@ -84,23 +147,20 @@ public class PushSender {
      * @throws JSONException
      */
     protected String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String uniqueAlertId) throws JSONException {
-        JSONObject jsonPayload = new JSONObject();
-        if (recipientString != null) {
-            JSONArray jsonPushArray = new JSONArray();
-            jsonPushArray.put(recipientValueString);
-            jsonPayload.put(recipientString, jsonPushArray);
-        }
-        JSONObject jsonAlert = new JSONObject();
-        jsonAlert.put("alert", uniqueAlertId);
-        jsonPayload.put("android", jsonAlert);
-        if (extras != null) {
-            JSONObject jsonExtras = new JSONObject(extras);
-            jsonPayload.put("extra", jsonExtras);
-        }
-        Log.w(TAG, jsonPayload.toString());
-        return jsonPayload.toString();
+        String message = PushPayloads.createMessage(recipientString, recipientValueString, extras, uniqueAlertId);
+        Log.w(TAG, message);
+        return message;
     }
 
+    /**
+     * Opens connections to the push API on a background thread, so the first push
+     * of a run is not slowed down by the DNS lookup, connect and TLS handshake
+     * @param connections The number of connections to have ready
+     * @return The warm up thread, join it to wait for the connections
+     */
+    public Thread warmUp(int connections) {
+        return client.warmUp(pushUrl, connections);
+    }
 
     /**
      * Broadcast a push message
@@ -176,73 +236,56 @@ public class PushSender {
      * @param extras Any notification extras
      * @param requestProperties The specified connection request property
      * @return A unique alert Id
+     * @throws CircuitOpenException if the endpoint's circuit is open
      * @throws Exception
      */
-    protected String sendMessage(String urlString, String recipientString, String recipientValueString, Map<String, String> extras, Map<String, String> requestProperties) throws Exception {
-        int sendMesgRetryCount = 0;
-        String uniqueAlertId = "uniqueAlertId";
-        while ( sendMesgRetryCount < MAX_SEND_MESG_RETRIES ) {
-            uniqueAlertId = AutomatorUtils.generateUniqueAlertId();
-            String json = createMessage(recipientString, recipientValueString, extras, uniqueAlertId);
-            Log.i(TAG,  "Created message to send" + json);
-
-            try {
-                sendMessageHelper(urlString, json, requestProperties);
-                return uniqueAlertId;
-            } catch (Exception ex) {
-                Log.e(TAG, "Failed to send message: " + json, ex);
-                Thread.sleep(SEND_MESG_RETRY_DELAY);
-                sendMesgRetryCount++;
+    protected String sendMessage(String urlString, final String recipientString, final String recipientValueString, final Map<String, String> extras, Map<String, String> requestProperties) throws Exception {
+        // Build through createMessage so subclasses still shape the payload
+        return sendMessageFromFactory(urlString, new SenderMessageFactory() {
+            public String createMessage(String uniqueAlertId, String bodyPlaceholder) throws JSONException {
+                String json = PushSender.this.createMessage(recipientString, recipientValueString, extras, uniqueAlertId);
+                Log.i(TAG,  "Created message to send" + json);
+                return json;
             }
-        }
-        return uniqueAlertId;
+        }, requestProperties, null);
     }
 
     /**
-     * Actually sends the push message
+     * Actually sends the push message, building each attempt with the factory
+     * @param urlString The specified url the message is sent to
+     * @param factory Builds the message for each attempt
+     * @param requestProperties The specified connection request property
+     * @param body The message body to stream into the message, or null to send the message as built
+     * @return A unique alert Id
+     * @throws CircuitOpenException if the endpoint's circuit is open
+     * @throws Exception
+     */
+    protected String sendMessageFromFactory(String urlString, SenderMessageFactory factory, Map<String, String> requestProperties, RichPushBody body) throws Exception {
+        client.setRetryDelay(TimeoutBudgets.getInstance().getOverride("SEND_MESG_RETRY_DELAY", SEND_MESG_RETRY_DELAY));
+        return client.send(urlString, factory, requestProperties, body);
+    }
+
+    /**
+     * Actually sends one attempt of the push message
      * @param urlString The specified url the message is sent to
      * @param message The json formatted message to be sent
      * @throws IOException
      */
     protected void sendMessageHelper(String urlString, String message, Map<String, String> requestProperties) throws IOException  {
-        URL url = new URL(urlString);
-        HttpURLConnection conn = null;
-
-        String basicAuthString =  "Basic "+Base64.encodeToString(String.format("%s:%s", appKey, masterSecret).getBytes(), Base64.NO_WRAP);
-
-        try {
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            conn.setUseCaches(false);
-            conn.setAllowUserInteraction(false);
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Authorization", basicAuthString);
-
-            if (requestProperties != null) {
-                for (String key: requestProperties.keySet()) {
-                    conn.setRequestProperty(key, requestProperties.get(key));
-                }
-            }
-
-            // Create the form content
-            OutputStream out = conn.getOutputStream();
-            Writer writer = new OutputStreamWriter(out, "UTF-8");
-            writer.write(message);
-            writer.close();
-            out.close();
+        client.send(urlString, message, requestProperties);
+        Log.i(TAG, "Push sent: " + message);
+    }
 
-            if (conn.getResponseCode() == 200 || conn.getResponseCode() == 202) {
-                Log.i(TAG, "Push sent: " + message);
-            } else {
-                Log.e(TAG, "Sending push failed with: " + conn.getResponseCode() + " " + conn.getResponseMessage() + " Message: " + message);
-                throw new IOException(conn.getResponseMessage());
-            }
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
-        }
+    /**
+     * Actually sends one attempt of the push message, streaming the body into the placeholder's place
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent, holding bodyPlaceholder as a string value
+     * @param bodyPlaceholder The placeholder the body replaces
+     * @param body The message body
+     * @throws IOException
+     */
+    protected void sendMessageHelper(String urlString, String message, String bodyPlaceholder, RichPushBody body, Map<String, String> requestProperties) throws IOException  {
+        client.send(urlString, message, bodyPlaceholder, body, requestProperties);
+        Log.i(TAG, "Push sent: " + message);
     }
 }
@@ -6,7 +6,8 @@ package com.urbanairship.automatorutils;
 
 import android.util.Log;
 
-import org.json.JSONArray;
+import com.urbanairship.pushsender.PushPayloads;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -18,7 +19,7 @@ import java.util.Map;
  *
  */
 public class PushSenderApiV3 extends PushSender {
-    private static final String PUSH_URL = "https://go.urbanairship.com/api/push/";
+    protected static final String PUSH_URL = "https://go.urbanairship.com/api/push/";
     private HashMap<String, String> requestProperties = new HashMap<String, String>();
 
     /**
@@ -31,32 +32,19 @@ public class PushSenderApiV3 extends PushSender {
         requestProperties.put("Accept", "application/vnd.urbanairship+json; version=3;");
     }
 
+    /**
+     * Gets the request properties sent with every APIv3 request
+     * @return The request properties
+     */
+    protected Map<String, String> getRequestProperties() {
+        return requestProperties;
+    }
+
     @Override
     protected String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String uniqueAlertId) throws JSONException {
-        JSONObject jsonPayload = new JSONObject();
-        if (recipientValueString.equalsIgnoreCase("all")) {
-            jsonPayload.put(recipientString, recipientValueString);
-        } else {
-            JSONObject jsonAudience = new JSONObject();
-
-            JSONObject jsonAudienceType = new JSONObject(recipientValueString);
-            JSONArray namesArray = jsonAudienceType.names();
-            String name = namesArray.getString(0);
-            jsonAudience.put(name, jsonAudienceType.get(name));
-
-            jsonPayload.put("audience", jsonAudience);
-        }
-
-        JSONArray jsonDeviceType = new JSONArray();
-        jsonDeviceType.put("android");
-        jsonPayload.put("device_types", jsonDeviceType);
-
-        JSONObject jsonNotification = new JSONObject();
-        jsonNotification.put("alert", uniqueAlertId);
-        jsonPayload.put("notification", jsonNotification);
-
-        return jsonPayload.toString();
+        return PushPayloads.createApiV3Message(recipientString, recipientValueString, uniqueAlertId);
     }
+
     /**
      * Broadcast a push message
      * @return A unique alert Id
@@ -2,7 +2,9 @@ package com.urbanairship.automatorutils;
 
 import android.util.Log;
 
-import org.json.JSONArray;
+import com.urbanairship.pushsender.PushPayloads;
+import com.urbanairship.pushsender.RichPushBody;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -26,26 +28,42 @@ public class RichPushSender extends PushSender {
 
     @Override
     protected String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String uniqueAlertId) throws JSONException {
-        JSONObject jsonPayload = new JSONObject();
-        JSONObject jsonPush = new JSONObject();
-        if (recipientString != null) {
-            JSONArray jsonPushArray = new JSONArray();
-            jsonPushArray.put(recipientValueString);
-            jsonPayload.put(recipientString, jsonPushArray);
-        }
-        JSONObject jsonAlert = new JSONObject();
-        jsonAlert.put("alert", uniqueAlertId);
-        if (extras != null) {
-            JSONObject jsonExtras = new JSONObject(extras);
-            jsonAlert.put("extra", jsonExtras);
-        }
-        jsonPush.put("android", jsonAlert);
-        jsonPayload.put("push", jsonPush);
-        jsonPayload.put("title", "Rich Push " + uniqueAlertId);
-        jsonPayload.put("message", "Rich Push Message " + uniqueAlertId);
-        jsonPayload.put("content-type", "text/html");
+        return createMessage(recipientString, recipientValueString, extras, uniqueAlertId, "Rich Push Message " + uniqueAlertId);
+    }
+
+    /**
+     * Builds the rich push message to be sent with a message body
+     * @param recipientString The string to append based on the type of push
+     * @param recipientValueString The value of the recipientString based on the type
+     * @param extras Any notification extras
+     * @param uniqueAlertId The string used to identify push messages
+     * @param body The message body
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    protected String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String uniqueAlertId, String body) throws JSONException {
+        return PushPayloads.createRichMessage(recipientString, recipientValueString, extras, uniqueAlertId, body);
+    }
 
-        return jsonPayload.toString();
+    /**
+     * Actually sends the rich push message with a body that is streamed into the request
+     * @param urlString The specified url the message is sent to
+     * @param recipientString The specified type of push
+     * @param recipientValueString The value of the recipientString based on the type
+     * @param extras Any notification extras
+     * @param requestProperties The specified connection request property
+     * @param body The message body
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    protected String sendMessage(String urlString, final String recipientString, final String recipientValueString, final Map<String, String> extras, Map<String, String> requestProperties, RichPushBody body) throws Exception {
+        return sendMessageFromFactory(urlString, new SenderMessageFactory() {
+            public String createMessage(String uniqueAlertId, String bodyPlaceholder) throws JSONException {
+                String json = RichPushSender.this.createMessage(recipientString, recipientValueString, extras, uniqueAlertId, bodyPlaceholder);
+                Log.i(TAG,  "Created message to send" + json);
+                return json;
+            }
+        }, requestProperties, body);
     }
 
     /**
@@ -59,6 +77,29 @@ public class RichPushSender extends PushSender {
         return sendMessage(RICH_PUSH_URL, "users", user, null);
     }
 
+    /**
+     * Broadcasts a rich push message with the specified body
+     * @param body The message body, streamed into the request
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    public String sendRichPushMessage(RichPushBody body) throws Exception {
+        Log.i(TAG, "Broadcast rich message with streamed body");
+        return sendMessage(RICH_PUSH_BROADCAST_URL, null, null, null, null, body);
+    }
+
+    /**
+     * Sends a rich push message with the specified body to a user
+     * @param user The specified user id to send the rich push message to
+     * @param body The message body, streamed into the request
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    public String sendRichPushToUser(String user, RichPushBody body) throws Exception {
+        Log.i(TAG, "Send message with streamed body to user: " + user);
+        return sendMessage(RICH_PUSH_URL, "users", user, null, null, body);
+    }
+
     /**
      * Sends a push message to an APID
      * @param apid The specified apid to send the push message to
@@ -1,5 +1,10 @@
 package com.urbanairship.automatorutils;
 
+import android.util.Log;
+
+import com.urbanairship.pushsender.PushPayloads;
+import com.urbanairship.pushsender.RichPushBody;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -20,15 +25,95 @@ public class RichPushSenderApiV3 extends PushSenderApiV3 {
 
     @Override
     protected String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String uniqueAlertId) throws JSONException {
+        return createMessage(recipientString, recipientValueString, extras, uniqueAlertId, "Rich Push Message " + uniqueAlertId);
+    }
+
+    /**
+     * Builds the rich push message to be sent with a message body
+     * @param recipientString The string to append based on the type of push
+     * @param recipientValueString The value of the recipientString based on the type
+     * @param extras Any notification extras
+     * @param uniqueAlertId The string used to identify push messages
+     * @param body The message body
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    protected String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String uniqueAlertId, String body) throws JSONException {
         String message = super.createMessage(recipientString, recipientValueString, extras, uniqueAlertId);
-        JSONObject jsonPayload = new JSONObject(message);
+        return PushPayloads.addRichApiV3Message(message, uniqueAlertId, body);
+    }
+
+    /**
+     * Actually sends the rich push message with a body that is streamed into the request
+     * @param urlString The specified url the message is sent to
+     * @param recipientString The specified type of push
+     * @param recipientValueString The value of the recipientString based on the type
+     * @param extras Any notification extras
+     * @param requestProperties The specified connection request property
+     * @param body The message body
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    protected String sendMessage(String urlString, final String recipientString, final String recipientValueString, final Map<String, String> extras, Map<String, String> requestProperties, RichPushBody body) throws Exception {
+        return sendMessageFromFactory(urlString, new SenderMessageFactory() {
+            public String createMessage(String uniqueAlertId, String bodyPlaceholder) throws JSONException {
+                String json = RichPushSenderApiV3.this.createMessage(recipientString, recipientValueString, extras, uniqueAlertId, bodyPlaceholder);
+                Log.i(TAG,  "Created message to send" + json);
+                return json;
+            }
+        }, requestProperties, body);
+    }
+
+    /**
+     * Broadcasts a rich push message with the specified body
+     * @param body The message body, streamed into the request
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    public String sendRichPushMessage(RichPushBody body) throws Exception {
+        Log.i(TAG, "Broadcast rich message with streamed body");
+        return sendMessage(PUSH_URL, "audience", "all", null, getRequestProperties(), body);
+    }
+
+    /**
+     * Sends a rich push message with the specified body to a tag
+     * @param tag The specified tag to send the rich push message to
+     * @param body The message body, streamed into the request
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    public String sendRichPushToTag(String tag, RichPushBody body) throws Exception {
+        Log.i(TAG, "Send message with streamed body to tag: " + tag);
+        JSONObject jsonAudience = new JSONObject();
+        jsonAudience.put("tag", tag);
+        return sendMessage(PUSH_URL, "audience", jsonAudience.toString(), null, getRequestProperties(), body);
+    }
 
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("title", "Rich Push " + uniqueAlertId);
-        jsonMessage.put("body", "Rich Push Message " + uniqueAlertId);
-        jsonMessage.put("content_type", "text/html");
-        jsonPayload.put("message", jsonMessage);
+    /**
+     * Sends a rich push message with the specified body to an alias
+     * @param alias The specified alias to send the rich push message to
+     * @param body The message body, streamed into the request
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    public String sendRichPushToAlias(String alias, RichPushBody body) throws Exception {
+        Log.i(TAG, "Send message with streamed body to alias: " + alias);
+        JSONObject jsonAudience = new JSONObject();
+        jsonAudience.put("alias", alias);
+        return sendMessage(PUSH_URL, "audience", jsonAudience.toString(), null, getRequestProperties(), body);
+    }
 
-        return jsonPayload.toString();
+    /**
+     * Sends a rich push message with the specified body to an APID
+     * @param apid The specified apid to send the rich push message to
+     * @param body The message body, streamed into the request
+     * @return A unique alert Id
+     * @throws Exception
+     */
+    public String sendRichPushToApid(String apid, RichPushBody body) throws Exception {
+        Log.i(TAG, "Send message with streamed body to apid: " + apid);
+        JSONObject jsonAudience = new JSONObject();
+        jsonAudience.put("apid", apid);
+        return sendMessage(PUSH_URL, "audience", jsonAudience.toString(), null, getRequestProperties(), body);
     }
 }
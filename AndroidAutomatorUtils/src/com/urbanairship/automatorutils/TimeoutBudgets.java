@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.automatorutils;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Learns wait budgets per device model from how long named waits actually took.
+ * Until a wait has enough history its default budget is used. Timeouts are kept in
+ * the history as well, so a wait that keeps timing out gets a larger budget next run.
+ *
+ */
+public class TimeoutBudgets {
+    private static final String TAG = "TimeoutBudgets";
+    private static final String DEFAULT_STATS_FILE = "/data/local/tmp/automator-timeout-budgets.json";
+
+    private static int MIN_SAMPLES = 10;
+    private static int MAX_SAMPLES = 100;
+    private static int MARGIN_PERCENT = 20;
+    private static int MARGIN_TIME = 250;  // 0.25 seconds
+    private static int MIN_BUDGET = 100;  // 0.1 seconds
+    private static int MAX_BUDGET_MULTIPLIER = 3;
+    private static int TIMEOUT_RAISE_PERCENT = 50;
+
+    private static TimeoutBudgets instance;
+
+    /**
+     * How long one wait took and whether it ran out of budget
+     */
+    private static class Sample {
+        private final long elapsedTime;
+        private final boolean timedOut;
+
+        Sample(long elapsedTime, boolean timedOut) {
+            this.elapsedTime = elapsedTime;
+            this.timedOut = timedOut;
+        }
+    }
+
+    private final File statsFile;
+    private final String deviceModel;
+    private final Map<String, LinkedList<Sample>> samples = new HashMap<String, LinkedList<Sample>>();
+    private final Map<String, Integer> overrides = new HashMap<String, Integer>();
+    private JSONObject stats = new JSONObject();
+    private boolean dirty = false;
+
+    /**
+     * Gets the shared budgets for this device, stored in /data/local/tmp. New history
+     * is saved when the process exits, or earlier with save.
+     * @return The timeout budgets
+     */
+    public static synchronized TimeoutBudgets getInstance() {
+        if (instance == null) {
+            final TimeoutBudgets budgets = new TimeoutBudgets(DEFAULT_STATS_FILE, Build.MANUFACTURER + " " + Build.MODEL);
+            Runtime.getRuntime().addShutdownHook(new Thread("TimeoutBudgets-save") {
+                public void run() {
+                    try {
+                        budgets.save();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to save timeout budgets to " + budgets.statsFile, e);
+                    }
+                }
+            });
+            instance = budgets;
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor for TimeoutBudgets
+     * @param statsFilePath The file the wait history is kept in
+     * @param deviceModel The device model the history is kept for
+     */
+    public TimeoutBudgets(String statsFilePath, String deviceModel) {
+        this.statsFile = new File(statsFilePath);
+        this.deviceModel = deviceModel;
+        load();
+    }
+
+    /**
+     * Gets the budget for a named wait. An override wins, otherwise the p99 of the recorded
+     * times plus a margin is used once there is enough history. A timeout only says the wait
+     * needed more than its budget, so when the p99 falls on a timeout the budget is raised
+     * above the longest timed out wait and the default instead.
+     * @param name The name of the wait
+     * @param defaultTime The budget to use without history, in milliseconds
+     * @return The budget in milliseconds
+     */
+    public synchronized int getBudget(String name, int defaultTime) {
+        Integer override = overrides.get(name);
+        if (override != null) {
+            return override;
+        }
+
+        LinkedList<Sample> history = samples.get(name);
+        if (history == null) {
+            return defaultTime;
+        }
+
+        List<Long> times = new ArrayList<Long>();
+        long longestTimeout = -1;
+        for (Sample sample : history) {
+            if (sample.timedOut) {
+                longestTimeout = Math.max(longestTimeout, sample.elapsedTime);
+            } else {
+                times.add(sample.elapsedTime);
+            }
+        }
+
+        if (history.size() < MIN_SAMPLES && longestTimeout < 0) {
+            return defaultTime;
+        }
+
+        // Timeouts rank above every completed wait
+        long budget;
+        int p99Index = (int) Math.ceil(history.size() * 0.99) - 1;
+        if (p99Index >= times.size()) {
+            long base = Math.max(longestTimeout, defaultTime);
+            budget = base + base * TIMEOUT_RAISE_PERCENT / 100;
+        } else {
+            Collections.sort(times);
+            long p99 = times.get(p99Index);
+            budget = p99 + p99 * MARGIN_PERCENT / 100 + MARGIN_TIME;
+        }
+        return (int) Math.max(MIN_BUDGET, Math.min(budget, (long) defaultTime * MAX_BUDGET_MULTIPLIER));
+    }
+
+    /**
+     * Gets the budget for a named sleep. Sleeps always take their full time, so they
+     * have no history to learn from and only an override changes them.
+     * @param name The name of the sleep
+     * @param defaultTime The budget to use without an override, in milliseconds
+     * @return The budget in milliseconds
+     */
+    public synchronized int getOverride(String name, int defaultTime) {
+        Integer override = overrides.get(name);
+        return override != null ? override : defaultTime;
+    }
+
+    /**
+     * Records how long a named wait took. The history is written on the next save.
+     * @param name The name of the wait
+     * @param elapsedTime The time the wait took, in milliseconds
+     * @param succeeded <code>true</code> if the wait ended because the condition was met,
+     * <code>false</code> if it ran out of budget
+     */
+    public synchronized void record(String name, long elapsedTime, boolean succeeded) {
+        LinkedList<Sample> history = samples.get(name);
+        if (history == null) {
+            history = new LinkedList<Sample>();
+            samples.put(name, history);
+        }
+
+        history.add(new Sample(elapsedTime, !succeeded));
+        if (history.size() > MAX_SAMPLES) {
+            history.removeFirst();
+        }
+        dirty = true;
+    }
+
+    /**
+     * Sets a fixed budget for a named wait, ignoring its history
+     * @param name The name of the wait
+     * @param timeInMilliseconds The budget to use
+     */
+    public synchronized void setOverride(String name, int timeInMilliseconds) {
+        overrides.put(name, timeInMilliseconds);
+    }
+
+    /**
+     * Removes the fixed budget for a named wait
+     * @param name The name of the wait
+     */
+    public synchronized void clearOverride(String name) {
+        overrides.remove(name);
+    }
+
+    /**
+     * Writes the history for every device model to the stats file if anything was recorded
+     * since the last save. Call it at the end of a run, for example from tearDown.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            JSONObject modelStats = new JSONObject();
+            for (Map.Entry<String, LinkedList<Sample>> entry : samples.entrySet()) {
+                JSONArray times = new JSONArray();
+                JSONArray timedOut = new JSONArray();
+                for (Sample sample : entry.getValue()) {
+                    times.put(sample.elapsedTime);
+                    timedOut.put(sample.timedOut);
+                }
+
+                JSONObject history = new JSONObject();
+                history.put("times", times);
+                history.put("timedOut", timedOut);
+                modelStats.put(entry.getKey(), history);
+            }
+            stats.put(deviceModel, modelStats);
+        } catch (JSONException e) {
+            throw new IOException("Failed to encode timeout budgets", e);
+        }
+
+        File tempFile = new File(statsFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+        try {
+            writer.write(stats.toString());
+        } finally {
+            writer.close();
+        }
+
+        if (!tempFile.renameTo(statsFile)) {
+            throw new IOException("Failed to replace " + statsFile);
+        }
+        dirty = false;
+    }
+
+    private void load() {
+        if (!statsFile.exists()) {
+            return;
+        }
+
+        try {
+            StringBuilder content = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(statsFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    content.append(line);
+                }
+            } finally {
+                reader.close();
+            }
+
+            stats = new JSONObject(content.toString());
+            JSONObject modelStats = stats.optJSONObject(deviceModel);
+            if (modelStats == null) {
+                return;
+            }
+
+            Iterator<?> names = modelStats.keys();
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                LinkedList<Sample> values = new LinkedList<Sample>();
+                JSONObject history = modelStats.getJSONObject(name);
+                JSONArray times = history.getJSONArray("times");
+                JSONArray timedOut = history.getJSONArray("timedOut");
+                for (int i = 0; i < times.length(); i++) {
+                    values.add(new Sample(times.getLong(i), timedOut.getBoolean(i)));
+                }
+                samples.put(name, values);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring unreadable timeout budgets in " + statsFile, e);
+            stats = new JSONObject();
+            samples.clear();
+        }
+    }
+}
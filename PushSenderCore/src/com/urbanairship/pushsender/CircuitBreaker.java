@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Per-endpoint circuit breaker for the push API. An endpoint's circuit opens when too many
+ * recent calls failed or were slow, fails calls fast while open, and lets a single probe
+ * through once the open time has passed to test for recovery.
+ *
+ */
+public class CircuitBreaker {
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * State of an endpoint's circuit
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Notified when an endpoint's circuit changes state
+     */
+    public interface Listener {
+        public void onStateChanged(String endpoint, State previousState, State state);
+    }
+
+    private static int DEFAULT_WINDOW_SIZE = 10;
+    private static int DEFAULT_MIN_CALLS = 3;
+    private static int DEFAULT_FAILURE_RATE_PERCENT = 50;
+    static int DEFAULT_SLOW_CALL_TIME = 10000;  // 10 seconds
+    private static int DEFAULT_OPEN_TIME = 30000;  // 30 seconds
+
+    private static CircuitBreaker instance;
+
+    private final int windowSize;
+    private final int minCalls;
+    private final int failureRatePercent;
+    private final int slowCallTime;
+    private final int openTime;
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile Clock clock = RealClock.getInstance();
+
+    /**
+     * Outcomes of the recent calls to one endpoint
+     */
+    private static class Circuit {
+        private final boolean[] window;
+        private int calls = 0;
+        private int failures = 0;
+        private int next = 0;
+        private State state = State.CLOSED;
+        private long openedTime = 0;
+        private boolean probing = false;
+
+        Circuit(int windowSize) {
+            window = new boolean[windowSize];
+        }
+
+        void add(boolean failed) {
+            if (calls == window.length) {
+                if (window[next]) {
+                    failures--;
+                }
+            } else {
+                calls++;
+            }
+
+            window[next] = failed;
+            if (failed) {
+                failures++;
+            }
+            next = (next + 1) % window.length;
+        }
+
+        void clear() {
+            calls = 0;
+            failures = 0;
+            next = 0;
+        }
+    }
+
+    /**
+     * Gets the circuit breaker shared by the push senders
+     * @return The circuit breaker
+     */
+    public static synchronized CircuitBreaker getInstance() {
+        if (instance == null) {
+            instance = new CircuitBreaker();
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor for CircuitBreaker
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_CALLS, DEFAULT_FAILURE_RATE_PERCENT, DEFAULT_SLOW_CALL_TIME, DEFAULT_OPEN_TIME);
+    }
+
+    /**
+     * Constructor for CircuitBreaker
+     * @param windowSize The number of recent calls the failure rate is computed over
+     * @param minCalls The number of calls needed before the circuit can open
+     * @param failureRatePercent The failure rate that opens the circuit
+     * @param slowCallTime Calls slower than this count as failures, in milliseconds
+     * @param openTime Time the circuit stays open before a probe is allowed, in milliseconds
+     */
+    public CircuitBreaker(int windowSize, int minCalls, int failureRatePercent, int slowCallTime, int openTime) {
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallTime = slowCallTime;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Sets the clock used to time how long circuits stay open
+     * @param clock The specified clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Adds a listener for state changes
+     * @param listener The listener to add
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for state changes
+     * @param listener The listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Checks that a call to the url may go ahead. Every call that is allowed must be
+     * followed by recordSuccess, recordFailure or release.
+     * @param urlString The url about to be called
+     * @throws CircuitOpenException if the endpoint's circuit is open
+     */
+    public void acquire(String urlString) throws CircuitOpenException {
+        String endpoint = getEndpoint(urlString);
+        boolean halfOpened = false;
+        synchronized (this) {
+            Circuit circuit = getCircuit(endpoint);
+
+            if (circuit.state == State.OPEN && clock.currentTimeMillis() - circuit.openedTime >= openTime) {
+                circuit.state = State.HALF_OPEN;
+                halfOpened = true;
+            }
+
+            if (circuit.state == State.OPEN || (circuit.state == State.HALF_OPEN && circuit.probing)) {
+                throw new CircuitOpenException(endpoint);
+            }
+
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.probing = true;
+            }
+        }
+
+        if (halfOpened) {
+            notifyListeners(endpoint, State.OPEN, State.HALF_OPEN);
+        }
+    }
+
+    /**
+     * Records a call that completed
+     * @param urlString The url that was called
+     * @param latency How long the call took, in milliseconds
+     */
+    public void recordSuccess(String urlString, long latency) {
+        record(urlString, latency > slowCallTime);
+    }
+
+    /**
+     * Records a call that failed
+     * @param urlString The url that was called
+     */
+    public void recordFailure(String urlString) {
+        record(urlString, true);
+    }
+
+    /**
+     * Ends a call whose outcome says nothing about the endpoint, such as a request that
+     * could not be built. A half open circuit may probe again.
+     * @param urlString The url that was called
+     */
+    public synchronized void release(String urlString) {
+        getCircuit(getEndpoint(urlString)).probing = false;
+    }
+
+    /**
+     * Gets the state of the circuit for the url's endpoint
+     * @param urlString The specified url
+     * @return The state
+     */
+    public synchronized State getState(String urlString) {
+        return getCircuit(getEndpoint(urlString)).state;
+    }
+
+    /**
+     * Closes every circuit and forgets the recent calls
+     */
+    public synchronized void reset() {
+        circuits.clear();
+    }
+
+    private void record(String urlString, boolean failed) {
+        String endpoint = getEndpoint(urlString);
+        State previousState;
+        State state;
+        synchronized (this) {
+            Circuit circuit = getCircuit(endpoint);
+            previousState = circuit.state;
+
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.probing = false;
+                circuit.clear();
+                circuit.state = failed ? State.OPEN : State.CLOSED;
+            } else if (circuit.state == State.CLOSED) {
+                circuit.add(failed);
+                if (circuit.calls >= minCalls && circuit.failures * 100 >= failureRatePercent * circuit.calls) {
+                    circuit.clear();
+                    circuit.state = State.OPEN;
+                }
+            }
+
+            // Calls that started before the circuit opened don't change it
+
+            if (circuit.state == State.OPEN && previousState != State.OPEN) {
+                circuit.openedTime = clock.currentTimeMillis();
+            }
+            state = circuit.state;
+        }
+
+        if (state != previousState) {
+            notifyListeners(endpoint, previousState, state);
+        }
+    }
+
+    private Circuit getCircuit(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            circuit = new Circuit(windowSize);
+            circuits.put(endpoint, circuit);
+        }
+        return circuit;
+    }
+
+    private void notifyListeners(String endpoint, State previousState, State state) {
+        LOG.warning("Circuit for " + endpoint + " changed from " + previousState + " to " + state);
+        for (Listener listener : listeners) {
+            listener.onStateChanged(endpoint, previousState, state);
+        }
+    }
+
+    /**
+     * Gets the endpoint a url belongs to
+     * @param urlString The specified url
+     * @return The endpoint in the form scheme://host:port
+     */
+    static String getEndpoint(String urlString) {
+        try {
+            URL url = new URL(urlString);
+            int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            return url.getProtocol() + "://" + url.getHost() + ":" + port;
+        } catch (MalformedURLException e) {
+            return urlString;
+        }
+    }
+}
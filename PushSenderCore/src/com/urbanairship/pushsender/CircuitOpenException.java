@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending when the circuit for a push endpoint is open
+ *
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String endpoint;
+
+    /**
+     * Constructor for CircuitOpenException
+     * @param endpoint The endpoint whose circuit is open
+     */
+    public CircuitOpenException(String endpoint) {
+        super("Circuit for " + endpoint + " is open, not sending");
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Constructor for CircuitOpenException
+     * @param endpoint The endpoint whose circuit is open
+     * @param cause The failure that opened the circuit
+     */
+    public CircuitOpenException(String endpoint, Throwable cause) {
+        super("Circuit for " + endpoint + " is open, not sending", cause);
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Gets the endpoint whose circuit is open
+     * @return The endpoint, in the form scheme://host:port
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+/**
+ * Source of the current time and of the sleeps used by the wait and retry loops.
+ * RealClock is used by default; VirtualClock lets tests run timeouts and retries instantly.
+ *
+ */
+public interface Clock {
+
+    /**
+     * Gets the current time
+     * @return The current time in milliseconds
+     */
+    public long currentTimeMillis();
+
+    /**
+     * Sleeps for the specified time
+     * @param timeInMilliseconds The time to sleep
+     * @throws InterruptedException
+     */
+    public void sleep(long timeInMilliseconds) throws InterruptedException;
+}
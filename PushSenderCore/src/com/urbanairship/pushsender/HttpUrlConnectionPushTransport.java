@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Blocking transport that sends each request on the calling thread using HttpURLConnection
+ *
+ */
+public class HttpUrlConnectionPushTransport implements PushTransport {
+    private static int CHUNK_SIZE = 8192;
+
+    private final int timeoutInMilliseconds;
+
+    /**
+     * Constructor for HttpUrlConnectionPushTransport. Connects and reads time out after the
+     * circuit breaker's default slow call time, so a hung request counts against the circuit
+     * instead of blocking the caller forever.
+     */
+    public HttpUrlConnectionPushTransport() {
+        this(CircuitBreaker.DEFAULT_SLOW_CALL_TIME);
+    }
+
+    /**
+     * Constructor for HttpUrlConnectionPushTransport
+     * @param timeoutInMilliseconds Time allowed to connect, and to wait for each read of the response
+     */
+    public HttpUrlConnectionPushTransport(int timeoutInMilliseconds) {
+        this.timeoutInMilliseconds = timeoutInMilliseconds;
+    }
+
+    public PushResponse send(String urlString, String message, Map<String, String> requestProperties) throws IOException {
+        HttpURLConnection conn = null;
+
+        try {
+            conn = openConnection(urlString, requestProperties);
+
+            // Create the form content
+            OutputStream out = conn.getOutputStream();
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(message);
+            writer.close();
+            out.close();
+
+            return new PushResponse(conn.getResponseCode(), conn.getResponseMessage());
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    public PushResponse send(String urlString, Reader message, Map<String, String> requestProperties) throws IOException {
+        HttpURLConnection conn = null;
+
+        try {
+            conn = openConnection(urlString, requestProperties);
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+
+            // Copy the content through a fixed buffer
+            OutputStream out = conn.getOutputStream();
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            char[] buffer = new char[CHUNK_SIZE];
+            int count;
+            while ((count = message.read(buffer)) != -1) {
+                writer.write(buffer, 0, count);
+            }
+            writer.close();
+            out.close();
+
+            return new PushResponse(conn.getResponseCode(), conn.getResponseMessage());
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection(String urlString, Map<String, String> requestProperties) throws IOException {
+        URL url = new URL(urlString);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(timeoutInMilliseconds);
+        conn.setReadTimeout(timeoutInMilliseconds);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setDoInput(true);
+        conn.setUseCaches(false);
+        conn.setAllowUserInteraction(false);
+
+        if (requestProperties != null) {
+            for (String key: requestProperties.keySet()) {
+                conn.setRequestProperty(key, requestProperties.get(key));
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Each request opens its own connection, so instead of keeping connections open this
+     * resolves the host and completes one TLS handshake with the default socket factory.
+     * Later requests then resume that TLS session rather than doing a full handshake.
+     * The number of connections is ignored, since no connection is kept.
+     * @param urlString The specified url to connect to
+     * @param connections Ignored, one handshake is enough to resume from
+     * @throws IOException
+     */
+    public void warmUp(String urlString, int connections) throws IOException {
+        URL url = new URL(urlString);
+        InetAddress.getAllByName(url.getHost());
+        if (!"https".equalsIgnoreCase(url.getProtocol())) {
+            return;
+        }
+
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(url.getHost(), port), timeoutInMilliseconds);
+            socket.setSoTimeout(timeoutInMilliseconds);
+            SSLSocket sslSocket = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory().createSocket(socket, url.getHost(), port, true);
+            try {
+                sslSocket.startHandshake();
+            } finally {
+                sslSocket.close();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void close() {
+        // Nothing to release, each request uses its own connection
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport that records requests in memory instead of sending them, for tests
+ *
+ */
+public class InMemoryPushTransport implements PushTransport {
+
+    /**
+     * A request recorded by the transport
+     */
+    public static class Request {
+        private final String urlString;
+        private final String message;
+        private final Map<String, String> requestProperties;
+
+        Request(String urlString, String message, Map<String, String> requestProperties) {
+            this.urlString = urlString;
+            this.message = message;
+            this.requestProperties = requestProperties;
+        }
+
+        public String getUrlString() {
+            return urlString;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Map<String, String> getRequestProperties() {
+            return requestProperties;
+        }
+    }
+
+    private final List<Request> requests = new ArrayList<Request>();
+    private final LinkedList<Object> queuedResults = new LinkedList<Object>();
+    private PushResponse defaultResponse = new PushResponse(202, "Accepted");
+
+    /**
+     * Queues a response for the next request. Queued results are used in order,
+     * after which the default response is returned.
+     * @param statusCode The HTTP status code
+     * @param statusMessage The HTTP status message
+     */
+    public synchronized void enqueueResponse(int statusCode, String statusMessage) {
+        queuedResults.add(new PushResponse(statusCode, statusMessage));
+    }
+
+    /**
+     * Queues a failure for the next request
+     * @param exception The exception to throw from send
+     */
+    public synchronized void enqueueFailure(IOException exception) {
+        queuedResults.add(exception);
+    }
+
+    /**
+     * Sets the response returned once the queued results are used up
+     * @param statusCode The HTTP status code
+     * @param statusMessage The HTTP status message
+     */
+    public synchronized void setDefaultResponse(int statusCode, String statusMessage) {
+        defaultResponse = new PushResponse(statusCode, statusMessage);
+    }
+
+    /**
+     * Gets the requests sent so far
+     * @return A copy of the recorded requests, oldest first
+     */
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(requests);
+    }
+
+    /**
+     * Clears the recorded requests and queued results
+     */
+    public synchronized void reset() {
+        requests.clear();
+        queuedResults.clear();
+    }
+
+    public synchronized PushResponse send(String urlString, String message, Map<String, String> requestProperties) throws IOException {
+        Map<String, String> properties = requestProperties == null ? new HashMap<String, String>() : new HashMap<String, String>(requestProperties);
+        requests.add(new Request(urlString, message, Collections.unmodifiableMap(properties)));
+
+        Object result = queuedResults.poll();
+        if (result instanceof IOException) {
+            throw (IOException) result;
+        }
+        return result != null ? (PushResponse) result : defaultResponse;
+    }
+
+    /**
+     * Reads the whole message and records it like any other request
+     */
+    public PushResponse send(String urlString, Reader message, Map<String, String> requestProperties) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = message.read(buffer)) != -1) {
+            content.append(buffer, 0, count);
+        }
+        return send(urlString, content.toString(), requestProperties);
+    }
+
+    public void warmUp(String urlString, int connections) {
+        // Nothing to connect to
+    }
+
+    public void close() {
+        // Nothing to release
+    }
+}
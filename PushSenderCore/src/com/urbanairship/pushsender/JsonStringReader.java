@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reader over a JSON document whose one string value is streamed from another reader.
+ * The value is JSON-escaped as it is read, so it is never held in memory as a whole.
+ *
+ */
+class JsonStringReader extends Reader {
+    private static int BUFFER_SIZE = 8192;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String prefix;
+    private final Reader value;
+    private final String suffix;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final char[] escape = new char[6];
+
+    private int prefixPosition = 0;
+    private int suffixPosition = 0;
+    private int bufferPosition = 0;
+    private int bufferLength = 0;
+    private int escapePosition = 0;
+    private int escapeLength = 0;
+    private boolean valueDone = false;
+
+    /**
+     * Constructor for JsonStringReader
+     * @param prefix The document up to and including the opening quote of the value
+     * @param value The unescaped value
+     * @param suffix The document from the closing quote of the value
+     */
+    JsonStringReader(String prefix, Reader value, String suffix) {
+        this.prefix = prefix;
+        this.value = value;
+        this.suffix = suffix;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < len) {
+            if (escapePosition < escapeLength) {
+                cbuf[off + count++] = escape[escapePosition++];
+            } else if (prefixPosition < prefix.length()) {
+                cbuf[off + count++] = prefix.charAt(prefixPosition++);
+            } else if (!valueDone) {
+                if (bufferPosition == bufferLength) {
+                    bufferPosition = 0;
+                    bufferLength = value.read(buffer);
+                    if (bufferLength < 0) {
+                        bufferLength = 0;
+                        valueDone = true;
+                    }
+                    continue;
+                }
+
+                char c = buffer[bufferPosition++];
+                if (!escape(c)) {
+                    cbuf[off + count++] = c;
+                }
+            } else if (suffixPosition < suffix.length()) {
+                cbuf[off + count++] = suffix.charAt(suffixPosition++);
+            } else {
+                break;
+            }
+        }
+
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        value.close();
+    }
+
+    /**
+     * Fills the escape sequence for a character if it needs one
+     * @param c The character
+     * @return <code>true</code> if the character is escaped, otherwise <code>false</code>
+     */
+    private boolean escape(char c) {
+        escapePosition = 0;
+        escapeLength = 2;
+        escape[0] = '\\';
+
+        switch (c) {
+            case '"':
+            case '\\':
+                escape[1] = c;
+                return true;
+            case '\b':
+                escape[1] = 'b';
+                return true;
+            case '\f':
+                escape[1] = 'f';
+                return true;
+            case '\n':
+                escape[1] = 'n';
+                return true;
+            case '\r':
+                escape[1] = 'r';
+                return true;
+            case '\t':
+                escape[1] = 't';
+                return true;
+            default:
+                // Line and paragraph separators are not valid inside JavaScript strings
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    escape[1] = 'u';
+                    escape[2] = HEX_DIGITS[(c >> 12) & 0xf];
+                    escape[3] = HEX_DIGITS[(c >> 8) & 0xf];
+                    escape[4] = HEX_DIGITS[(c >> 4) & 0xf];
+                    escape[5] = HEX_DIGITS[c & 0xf];
+                    escapeLength = 6;
+                    return true;
+                }
+
+                escapeLength = 0;
+                return false;
+        }
+    }
+}
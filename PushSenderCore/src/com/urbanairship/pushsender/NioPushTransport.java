@@ -0,0 +1,1192 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Non-blocking transport that multiplexes many in-flight requests over a few selector threads.
+ * Each request uses its own connection and completes as soon as the response status line is read.
+ * Connections opened ahead of time with warmUp are handed to the next requests to the same endpoint.
+ * Host names are looked up on a background thread and cached for a minute.
+ * Connections are always direct, so requests to endpoints that the system proxy settings
+ * send through a proxy fail instead; use HttpUrlConnectionPushTransport on those networks.
+ *
+ */
+public class NioPushTransport implements PushTransport {
+
+    /**
+     * Receives the result of an asynchronous send. Callbacks run on a selector
+     * thread and must not block.
+     */
+    public interface Callback {
+        public void onResponse(PushResponse response);
+        public void onFailure(IOException exception);
+    }
+
+    private static int DEFAULT_SELECTOR_THREADS = 2;
+    private static int DEFAULT_TIMEOUT = 30000;  // 30 seconds
+    private static int SELECT_TIMEOUT = 1000;  // 1 second
+    private static int CHUNK_SIZE = 8192;
+    private static int CHUNK_HEADER_SIZE = 10;  // hex length and CRLF
+    private static int IDLE_TIMEOUT = 60000;  // 1 minute
+    private static int READ_AHEAD_CHUNKS = 4;
+    private static int IO_THREADS = 4;
+    private static int ADDRESS_TTL = 60000;  // 1 minute
+
+    private final SSLContext sslContext;
+    private final int timeoutInMilliseconds;
+    private final Worker[] workers;
+    private final ExecutorService executor;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final ConcurrentHashMap<String, Queue<Exchange>> idleConnections = new ConcurrentHashMap<String, Queue<Exchange>>();
+    private final ConcurrentHashMap<String, CachedAddress> addresses = new ConcurrentHashMap<String, CachedAddress>();
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for NioPushTransport
+     * @throws IOException
+     */
+    public NioPushTransport() throws IOException {
+        this(DEFAULT_SELECTOR_THREADS, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor for NioPushTransport
+     * @param selectorThreads The number of selector threads to spread requests over
+     * @param timeoutInMilliseconds Time allowed for each request to receive a response
+     * @throws IOException
+     */
+    public NioPushTransport(int selectorThreads, int timeoutInMilliseconds) throws IOException {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("selectorThreads must be at least 1");
+        }
+
+        try {
+            this.sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
+        }
+
+        this.timeoutInMilliseconds = timeoutInMilliseconds;
+
+        // Runs the blocking work that must stay off the selector threads: host lookups and
+        // reads from streamed messages, which only hold a thread while they have room to read ahead
+        this.executor = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NioPushTransport-io");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.workers = new Worker[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            workers[i] = new Worker(Selector.open());
+            Thread thread = new Thread(workers[i], "NioPushTransport-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Sends the message without blocking the calling thread
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent
+     * @param requestProperties The request headers, including authorization
+     * @param callback Receives the response or failure
+     */
+    public void sendAsync(String urlString, String message, Map<String, String> requestProperties, Callback callback) {
+        sendAsync(urlString, message, null, requestProperties, callback);
+    }
+
+    /**
+     * Sends a message read from a reader without blocking the calling thread. The message
+     * is read a few chunks ahead on a small pool of background threads, so a slow reader only
+     * holds up its own request and the selector threads never read from it. The reader must
+     * stay open until the callback runs.
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent, not closed by this method
+     * @param requestProperties The request headers, including authorization
+     * @param callback Receives the response or failure
+     */
+    public void sendAsync(String urlString, Reader message, Map<String, String> requestProperties, Callback callback) {
+        sendAsync(urlString, null, message, requestProperties, callback);
+    }
+
+    public PushResponse send(String urlString, String message, Map<String, String> requestProperties) throws IOException {
+        return send(urlString, message, null, requestProperties);
+    }
+
+    public PushResponse send(String urlString, Reader message, Map<String, String> requestProperties) throws IOException {
+        return send(urlString, null, message, requestProperties);
+    }
+
+    private void sendAsync(String urlString, String message, Reader streamingMessage, Map<String, String> requestProperties, Callback callback) {
+        Exchange idle = takeIdleConnection(urlString);
+
+        Exchange exchange;
+        try {
+            exchange = new Exchange(new URL(urlString), message, streamingMessage, requestProperties, callback, idle);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+
+        if (closed) {
+            exchange.fail(new IOException("Transport is closed"));
+            return;
+        }
+
+        if (streamingMessage != null) {
+            exchange.readAhead();
+        }
+
+        // An idle connection can only be used from the selector thread that owns it
+        if (idle != null) {
+            idle.worker.submit(exchange);
+        } else {
+            dispatch(exchange, nextWorker());
+        }
+    }
+
+    /**
+     * Hands the exchange to the worker, first looking up the endpoint's address on a
+     * background thread if it isn't cached
+     * @param exchange The specified exchange
+     * @param worker The selector thread to run the exchange on
+     */
+    private void dispatch(final Exchange exchange, final Worker worker) {
+        if (exchange.address != null) {
+            worker.submit(exchange);
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        exchange.address = resolve(exchange.url.getHost(), exchange.port);
+                    } catch (UnknownHostException e) {
+                        exchange.fail(e);
+                        return;
+                    }
+                    worker.submit(exchange);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.fail(new IOException("Transport is closed"));
+        }
+    }
+
+    /**
+     * Gets the cached address of an endpoint
+     * @param host The specified host
+     * @param port The specified port
+     * @return The address, or null if it isn't cached or has expired
+     */
+    private InetSocketAddress getCachedAddress(String host, int port) {
+        CachedAddress cached = addresses.get(host + ":" + port);
+        if (cached == null || System.currentTimeMillis() > cached.expiry) {
+            return null;
+        }
+        return cached.address;
+    }
+
+    /**
+     * Looks up the address of an endpoint and caches it for a minute
+     * @param host The specified host
+     * @param port The specified port
+     * @return The resolved address
+     * @throws UnknownHostException if the host could not be resolved
+     */
+    private InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        addresses.put(host + ":" + port, new CachedAddress(address, System.currentTimeMillis() + ADDRESS_TTL));
+        return address;
+    }
+
+    private PushResponse send(String urlString, String message, Reader streamingMessage, Map<String, String> requestProperties) throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final PushResponse[] response = new PushResponse[1];
+        final IOException[] failure = new IOException[1];
+
+        sendAsync(urlString, message, streamingMessage, requestProperties, new Callback() {
+            public void onResponse(PushResponse result) {
+                response[0] = result;
+                latch.countDown();
+            }
+
+            public void onFailure(IOException exception) {
+                failure[0] = exception;
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + urlString);
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return response[0];
+    }
+
+    /**
+     * Opens connections to the url's endpoint and completes their TLS handshakes, then keeps
+     * them idle for up to a minute until requests to the same endpoint take them. The TLS
+     * session is kept by the transport, so connections opened later resume it.
+     * @param urlString The specified url to open connections to
+     * @param connections The number of connections to open
+     * @throws IOException if any of the connections failed to open, the others stay open
+     */
+    public void warmUp(String urlString, int connections) throws IOException {
+        URL url = new URL(urlString);
+        final CountDownLatch latch = new CountDownLatch(connections);
+        final IOException[] failure = new IOException[1];
+
+        Callback callback = new Callback() {
+            public void onResponse(PushResponse response) {
+                latch.countDown();
+            }
+
+            public void onFailure(IOException exception) {
+                failure[0] = exception;
+                latch.countDown();
+            }
+        };
+
+        for (int i = 0; i < connections; i++) {
+            Exchange exchange = new Exchange(url, callback);
+            if (closed) {
+                exchange.fail(new IOException("Transport is closed"));
+            } else {
+                dispatch(exchange, nextWorker());
+            }
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening connections to " + urlString);
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Gets the number of warmed up connections waiting for a request
+     * @param urlString The specified url
+     * @return The number of idle connections to the url's endpoint
+     */
+    public int getIdleConnectionCount(String urlString) {
+        Queue<Exchange> idle = idleConnections.get(CircuitBreaker.getEndpoint(urlString));
+        return idle == null ? 0 : idle.size();
+    }
+
+    private Worker nextWorker() {
+        return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    private Exchange takeIdleConnection(String urlString) {
+        Queue<Exchange> idle = idleConnections.get(CircuitBreaker.getEndpoint(urlString));
+        if (idle == null) {
+            return null;
+        }
+
+        Exchange exchange;
+        while ((exchange = idle.poll()) != null) {
+            if (!exchange.done.get()) {
+                return exchange;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the selector threads and fails any request still in flight
+     */
+    public void close() {
+        // Exchanges register their channels under the same lock, so none is left open
+        synchronized (this) {
+            closed = true;
+        }
+        executor.shutdownNow();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    /**
+     * Selector thread that drives the exchanges assigned to it
+     */
+    private class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<Exchange> pending = new ConcurrentLinkedQueue<Exchange>();
+        private final Queue<Exchange> resumed = new ConcurrentLinkedQueue<Exchange>();
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        void submit(Exchange exchange) {
+            exchange.worker = this;
+            pending.add(exchange);
+            selector.wakeup();
+
+            // The worker may have already drained its queue for the last time
+            if (closed) {
+                failPending();
+            }
+        }
+
+        /**
+         * Continues an exchange that was waiting for its next chunk
+         * @param exchange The specified exchange
+         */
+        void resume(Exchange exchange) {
+            resumed.add(exchange);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                } catch (IOException e) {
+                    break;
+                }
+
+                Exchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    exchange.start(selector);
+                }
+
+                while ((exchange = resumed.poll()) != null) {
+                    exchange.resume();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Exchange) key.attachment()).handle(key);
+                }
+
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    Exchange inFlight = (Exchange) key.attachment();
+                    if (now > inFlight.deadline) {
+                        inFlight.fail(new SocketTimeoutException("No response from " + inFlight.url + " after " + timeoutInMilliseconds + "ms"));
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Exchange) key.attachment()).fail(new IOException("Transport is closed"));
+            }
+            failPending();
+            resumed.clear();
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore, the thread is exiting
+            }
+        }
+
+        private void failPending() {
+            Exchange exchange;
+            while ((exchange = pending.poll()) != null) {
+                exchange.fail(new IOException("Transport is closed"));
+            }
+        }
+    }
+
+    /**
+     * A single request and response over its own connection, or a warmed up connection
+     * waiting for a request
+     */
+    private class Exchange {
+        private final URL url;
+        private final boolean secure;
+        private final int port;
+        private volatile InetSocketAddress address;
+        private final Reader source;
+        private final Callback callback;
+        private final Exchange idle;
+        private final boolean warming;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final StringBuilder statusLine = new StringBuilder();
+
+        private volatile Worker worker;
+        private long deadline;
+        private boolean parked = false;
+        private SSLEngine engine;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer appOut;
+        private ByteBuffer appIn;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private boolean verified = false;
+        private boolean adopted = false;
+        private boolean written = false;
+
+        // Chunked transfer state when the message comes from a reader. The encoder state is only
+        // used by the read ahead task, and reading makes sure just one runs at a time.
+        private final BlockingQueue<ByteBuffer> chunks;
+        private final AtomicBoolean waiting = new AtomicBoolean(false);
+        private final AtomicBoolean reading = new AtomicBoolean(false);
+        private volatile IOException readFailure;
+        private volatile boolean readFinished = false;
+        private boolean lastChunkQueued = false;
+        private CharBuffer sourceChars;
+        private CharsetEncoder encoder;
+        private boolean sourceDone = false;
+        private boolean encoderFlushed = false;
+
+        Exchange(URL url, String message, Reader source, Map<String, String> requestProperties, Callback callback, Exchange idle) throws IOException {
+            this.secure = "https".equalsIgnoreCase(url.getProtocol());
+            if (!secure && !"http".equalsIgnoreCase(url.getProtocol())) {
+                throw new IOException("Unsupported protocol: " + url.getProtocol());
+            }
+
+            checkDirect(url);
+            this.url = url;
+            this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            this.callback = callback;
+            this.idle = idle;
+            this.warming = false;
+            this.address = idle != null ? idle.address : getCachedAddress(url.getHost(), port);
+            this.source = source;
+            this.chunks = source != null ? new ArrayBlockingQueue<ByteBuffer>(READ_AHEAD_CHUNKS) : null;
+            this.appOut = ByteBuffer.wrap(buildRequest(url, message, requestProperties));
+            this.deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+        }
+
+        Exchange(URL url, Callback callback) throws IOException {
+            this.secure = "https".equalsIgnoreCase(url.getProtocol());
+            if (!secure && !"http".equalsIgnoreCase(url.getProtocol())) {
+                throw new IOException("Unsupported protocol: " + url.getProtocol());
+            }
+
+            checkDirect(url);
+            this.url = url;
+            this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            this.callback = callback;
+            this.idle = null;
+            this.warming = true;
+            this.address = getCachedAddress(url.getHost(), port);
+            this.source = null;
+            this.chunks = null;
+            this.appOut = ByteBuffer.allocate(0);
+            this.deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+        }
+
+        void start(Selector selector) {
+            if (idle != null && adopt(idle)) {
+                return;
+            }
+            connect(selector);
+        }
+
+        /**
+         * Opens a new connection for the exchange
+         * @param selector The selector of the thread that runs the exchange
+         */
+        private void connect(Selector selector) {
+            try {
+                if (secure) {
+                    engine = sslContext.createSSLEngine(url.getHost(), port);
+                    engine.setUseClientMode(true);
+                    verified = enableEndpointIdentification(engine);
+                    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                    netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    netOut.flip();
+                } else {
+                    appIn = ByteBuffer.allocate(1024);
+                }
+
+                SocketChannel opened = SocketChannel.open();
+                boolean connected;
+                try {
+                    opened.configureBlocking(false);
+                    connected = opened.connect(address);
+                } catch (IOException e) {
+                    opened.close();
+                    throw e;
+                }
+
+                // The exchange can be failed from another thread, and release only closes
+                // a channel it can see, so the channel is only kept while the exchange is live
+                synchronized (NioPushTransport.this) {
+                    if (done.get() || closed) {
+                        opened.close();
+                        fail(new IOException("Transport is closed"));
+                        return;
+                    }
+                    channel = opened;
+                    key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+                }
+
+                if (connected) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Takes over the connection of a warmed up exchange and sends the request on it
+         * @param idle The specified idle exchange
+         * @return <code>true</code> if the connection was still open, otherwise <code>false</code>
+         */
+        private boolean adopt(Exchange idle) {
+            if (!idle.done.compareAndSet(false, true)) {
+                return false;
+            }
+
+            channel = idle.channel;
+            key = idle.key;
+            engine = idle.engine;
+            appIn = idle.appIn;
+            netIn = idle.netIn;
+            netOut = idle.netOut;
+            verified = idle.verified;
+            adopted = true;
+            key.attach(this);
+
+            try {
+                checkIdleConnection();
+                pump();
+            } catch (IOException e) {
+                if (!reconnect()) {
+                    fail(e);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks without blocking that the server hasn't closed the adopted connection
+         * @throws IOException if the connection was closed or has unexpected data on it
+         */
+        private void checkIdleConnection() throws IOException {
+            int read = channel.read(engine != null ? netIn : appIn);
+            if (read < 0) {
+                throw new EOFException("Idle connection to " + url + " was closed");
+            } else if (read > 0) {
+                throw new IOException("Unexpected data on idle connection to " + url);
+            }
+        }
+
+        /**
+         * Drops an adopted connection that failed before any of the request was written and
+         * starts again on a new one. Servers close idle connections at any time, so this is
+         * not reported as a failure. Only done once per exchange.
+         * @return <code>true</code> if the exchange moved to a new connection, otherwise <code>false</code>
+         */
+        private boolean reconnect() {
+            if (!adopted || written || done.get()) {
+                return false;
+            }
+
+            adopted = false;
+            synchronized (NioPushTransport.this) {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore, the connection is being replaced
+                }
+                channel = null;
+                key = null;
+            }
+            engine = null;
+            appIn = null;
+            netIn = null;
+            netOut = null;
+            verified = false;
+            connect(worker.selector);
+            return true;
+        }
+
+        void resume() {
+            if (done.get()) {
+                return;
+            }
+
+            try {
+                pump();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Continues the exchange when its connection is ready
+         * @param selected The selected key, which is stale if the exchange has since moved to a new connection
+         */
+        void handle(SelectionKey selected) {
+            try {
+                if (selected != key || !key.isValid()) {
+                    return;
+                }
+
+                if (key.isConnectable()) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    onConnected();
+                } else {
+                    pump();
+                }
+            } catch (IOException e) {
+                if (!reconnect()) {
+                    fail(e);
+                }
+            }
+        }
+
+        void fail(IOException exception) {
+            if (done.compareAndSet(false, true)) {
+                release();
+
+                // An idle connection that closes or expires is just dropped
+                if (!parked) {
+                    callback.onFailure(exception);
+                }
+            }
+        }
+
+        private void complete(PushResponse response) {
+            if (done.compareAndSet(false, true)) {
+                release();
+                callback.onResponse(response);
+            }
+        }
+
+        /**
+         * Keeps the connected exchange idle until a request takes its connection
+         */
+        private void park() {
+            parked = true;
+            deadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+
+            String endpoint = CircuitBreaker.getEndpoint(url.toString());
+            Queue<Exchange> queue = idleConnections.get(endpoint);
+            if (queue == null) {
+                idleConnections.putIfAbsent(endpoint, new ConcurrentLinkedQueue<Exchange>());
+                queue = idleConnections.get(endpoint);
+            }
+            queue.add(this);
+            callback.onResponse(null);
+        }
+
+        private void release() {
+            if (parked) {
+                Queue<Exchange> queue = idleConnections.get(CircuitBreaker.getEndpoint(url.toString()));
+                if (queue != null) {
+                    queue.remove(this);
+                }
+            }
+
+            synchronized (NioPushTransport.this) {
+                if (key != null) {
+                    key.cancel();
+                }
+
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // Ignore, the exchange is finished
+                    }
+                }
+            }
+        }
+
+        private void onConnected() throws IOException {
+            if (engine != null) {
+                engine.beginHandshake();
+            }
+            pump();
+        }
+
+        private void pump() throws IOException {
+            if (engine != null) {
+                pumpTls();
+                return;
+            }
+
+            while (appOut.hasRemaining() || nextChunk()) {
+                if (channel.write(appOut) > 0) {
+                    written = true;
+                }
+                if (appOut.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            if (warming && !parked) {
+                park();
+            }
+
+            while (!done.get()) {
+                int read = channel.read(appIn);
+                if (read < 0) {
+                    throw new EOFException("Connection to " + url + " closed before a response was received");
+                } else if (read == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                parse();
+            }
+        }
+
+        private void pumpTls() throws IOException {
+            while (!done.get()) {
+                if (!flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    continue;
+                }
+
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    wrap(ByteBuffer.allocate(0));
+                    continue;
+                }
+
+                if (status == HandshakeStatus.NOT_HANDSHAKING && !verified) {
+                    // Older platforms can't have the engine check the host name, so check it here
+                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(url.getHost(), engine.getSession())) {
+                        throw new SSLException("Host name " + url.getHost() + " does not match the server certificate");
+                    }
+                    verified = true;
+                }
+
+                if (status == HandshakeStatus.NOT_HANDSHAKING && warming && !parked) {
+                    park();
+                }
+
+                if (status == HandshakeStatus.NOT_HANDSHAKING && (appOut.hasRemaining() || nextChunk())) {
+                    wrap(appOut);
+                    continue;
+                }
+
+                if (unwrap()) {
+                    continue;
+                }
+
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    throw new EOFException("Connection to " + url + " closed before a response was received");
+                } else if (read == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Starts a background task that reads the message ahead until the chunk queue is full,
+         * unless one is running or the whole message is queued
+         */
+        void readAhead() {
+            if (readFinished || done.get() || !reading.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            fillChunks();
+                        } finally {
+                            reading.set(false);
+                        }
+
+                        // A chunk may have been taken after the queue was found full
+                        if (chunks.remainingCapacity() > 0) {
+                            readAhead();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reading.set(false);
+                readFinished = true;
+                readFailure = new IOException("Transport is closed");
+                resumeIfWaiting();
+            }
+        }
+
+        /**
+         * Reads and encodes the message into chunks while the queue has room, stopping
+         * once the zero length chunk is queued
+         */
+        private void fillChunks() {
+            try {
+                if (encoder == null) {
+                    sourceChars = CharBuffer.allocate(CHUNK_SIZE);
+                    encoder = Charset.forName("UTF-8").newEncoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                }
+                int capacity = CHUNK_HEADER_SIZE + (int) (CHUNK_SIZE * encoder.maxBytesPerChar()) + 2;
+
+                while (!readFinished && !done.get() && chunks.remainingCapacity() > 0) {
+                    while (!sourceDone && sourceChars.hasRemaining()) {
+                        if (source.read(sourceChars) < 0) {
+                            sourceDone = true;
+                        }
+                    }
+
+                    // Leave room for the size line, which is filled in once the data length is known,
+                    // and for the CRLF after the data
+                    ByteBuffer chunk = ByteBuffer.allocate(capacity);
+                    chunk.position(CHUNK_HEADER_SIZE);
+                    chunk.limit(chunk.capacity() - 2);
+                    if (!encoderFlushed) {
+                        sourceChars.flip();
+                        encoder.encode(sourceChars, chunk, sourceDone);
+                        boolean allEncoded = !sourceChars.hasRemaining();
+                        sourceChars.compact();
+                        if (sourceDone && allEncoded) {
+                            encoder.flush(chunk);
+                            encoderFlushed = true;
+                        }
+                    }
+                    chunk.limit(chunk.capacity());
+
+                    int length = chunk.position() - CHUNK_HEADER_SIZE;
+                    if (length == 0 && !sourceDone) {
+                        // Only part of a surrogate pair was read, read more
+                        continue;
+                    }
+
+                    byte[] header = (Integer.toHexString(length) + "\r\n").getBytes("ISO-8859-1");
+                    int start = CHUNK_HEADER_SIZE - header.length;
+                    chunk.position(start);
+                    chunk.put(header);
+                    chunk.position(CHUNK_HEADER_SIZE + length);
+                    chunk.put((byte) '\r');
+                    chunk.put((byte) '\n');
+                    chunk.flip();
+                    chunk.position(start);
+
+                    // This task is the only producer, so there is room for the chunk
+                    chunks.add(chunk);
+                    if (length == 0) {
+                        // The zero length chunk ends the message
+                        readFinished = true;
+                    }
+                    resumeIfWaiting();
+                }
+            } catch (IOException e) {
+                readFinished = true;
+                readFailure = e;
+                resumeIfWaiting();
+            }
+        }
+
+        private void resumeIfWaiting() {
+            if (waiting.compareAndSet(true, false)) {
+                worker.resume(this);
+            }
+        }
+
+        /**
+         * Moves the next chunk read ahead from the message into appOut, without blocking
+         * @return <code>true</code> if there is a chunk to send, otherwise <code>false</code>
+         * if the message is done or the next chunk isn't read yet
+         * @throws IOException if the message could not be read
+         */
+        private boolean nextChunk() throws IOException {
+            if (chunks == null || lastChunkQueued) {
+                return false;
+            }
+
+            ByteBuffer next = chunks.poll();
+            if (next == null) {
+                // Ask to be resumed, then look again in case the chunk was queued in between
+                waiting.set(true);
+                next = chunks.poll();
+                if (next == null) {
+                    if (readFailure != null) {
+                        throw readFailure;
+                    }
+                    return false;
+                }
+                waiting.set(false);
+            }
+
+            // Only the zero length chunk has a size line starting with 0
+            lastChunkQueued = next.get(next.position()) == '0';
+            appOut = next;
+            readAhead();
+            return true;
+        }
+
+        private boolean flush() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+                written = true;
+            }
+            return true;
+        }
+
+        private void wrap(ByteBuffer source) throws IOException {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(source, netOut);
+            netOut.flip();
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS session to " + url + " closed");
+            }
+        }
+
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case CLOSED:
+                    throw new EOFException("TLS session to " + url + " closed before a response was received");
+                default:
+                    if (result.bytesProduced() > 0) {
+                        parse();
+                    }
+
+                    HandshakeStatus status = result.getHandshakeStatus();
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                            || (status != HandshakeStatus.NEED_UNWRAP && status != HandshakeStatus.NOT_HANDSHAKING);
+            }
+        }
+
+        private ByteBuffer enlarge(ByteBuffer buffer, int extra) {
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + extra);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        /**
+         * Reads the status line from the received bytes and completes the exchange
+         * @throws IOException
+         */
+        private void parse() throws IOException {
+            if (parked) {
+                throw new IOException("Unexpected data on idle connection to " + url);
+            }
+
+            appIn.flip();
+            while (appIn.hasRemaining()) {
+                char c = (char) (appIn.get() & 0xff);
+                if (c == '\n') {
+                    complete(parseStatusLine(statusLine.toString().trim()));
+                    return;
+                }
+                statusLine.append(c);
+            }
+            appIn.clear();
+        }
+    }
+
+    /**
+     * A resolved endpoint address and when it should be looked up again
+     */
+    private static class CachedAddress {
+        private final InetSocketAddress address;
+        private final long expiry;
+
+        CachedAddress(InetSocketAddress address, long expiry) {
+            this.address = address;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Refuses urls that the system proxy settings send through a proxy, since this
+     * transport can only connect directly
+     * @param url The specified url
+     * @throws IOException if the url should go through a proxy
+     */
+    private static void checkDirect(URL url) throws IOException {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return;
+        }
+
+        List<Proxy> proxies;
+        try {
+            proxies = proxySelector.select(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid url: " + url, e);
+        }
+
+        if (proxies != null && !proxies.isEmpty() && proxies.get(0).type() != Proxy.Type.DIRECT) {
+            throw new IOException("Requests to " + url + " must go through proxy " + proxies.get(0) + ", which NioPushTransport doesn't support");
+        }
+    }
+
+    /**
+     * Asks the engine to verify the server host name during the handshake
+     * @param engine The specified engine
+     * @return <code>true</code> if the platform supports it, otherwise <code>false</code>
+     */
+    private static boolean enableEndpointIdentification(SSLEngine engine) {
+        try {
+            // Only available from Java 7 and Android API 24
+            SSLParameters parameters = engine.getSSLParameters();
+            SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class).invoke(parameters, "HTTPS");
+            engine.setSSLParameters(parameters);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds the raw HTTP request
+     * @param url The specified url the message is sent to
+     * @param message The json formatted message to be sent, or null to send the body in chunks after the headers
+     * @param requestProperties The request headers
+     * @return The request bytes
+     * @throws IOException
+     */
+    static byte[] buildRequest(URL url, String message, Map<String, String> requestProperties) throws IOException {
+        byte[] body = message == null ? new byte[0] : message.getBytes("UTF-8");
+
+        String path = url.getPath().length() == 0 ? "/" : url.getPath();
+        if (url.getQuery() != null) {
+            path += "?" + url.getQuery();
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        if (message == null) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("Connection: close\r\n");
+        if (requestProperties != null) {
+            for (String key: requestProperties.keySet()) {
+                head.append(key).append(": ").append(requestProperties.get(key)).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes("ISO-8859-1");
+        byte[] request = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return request;
+    }
+
+    /**
+     * Parses a status line such as "HTTP/1.1 202 Accepted"
+     * @param statusLine The status line
+     * @return The parsed response
+     * @throws IOException
+     */
+    static PushResponse parseStatusLine(String statusLine) throws IOException {
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+
+        try {
+            return new PushResponse(Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : "");
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+    }
+}
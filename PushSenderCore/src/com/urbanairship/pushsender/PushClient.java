@@ -0,0 +1,585 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends messages to the push API with authorization, retries and the endpoint circuit breaker.
+ * Has no Android dependencies so it can also run on a plain JVM.
+ *
+ */
+public class PushClient {
+    private static final Logger LOG = Logger.getLogger(PushClient.class.getName());
+    private static final String BODY_PLACEHOLDER_PREFIX = "RICH_PUSH_BODY_";
+    private static final char[] BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static int MAX_SEND_MESG_RETRIES = 3;
+    private static int SEND_MESG_RETRY_DELAY = 3000;  // 3 seconds
+
+    /**
+     * Builds and sends the message for each send attempt
+     */
+    public interface MessageFactory {
+
+        /**
+         * Builds the message to be sent
+         * @param uniqueAlertId The string used to identify the push message
+         * @param bodyPlaceholder The string to put where a streamed body goes, or null when not streaming
+         * @return The message to be sent
+         * @throws JSONException
+         */
+        public String createMessage(String uniqueAlertId, String bodyPlaceholder) throws JSONException;
+
+        /**
+         * Sends one attempt, usually through PushClient.send
+         * @param urlString The specified url the message is sent to
+         * @param message The message built by createMessage
+         * @param bodyPlaceholder The placeholder the body replaces, or null when not streaming
+         * @param body The message body, or null when not streaming
+         * @param requestProperties The specified connection request property
+         * @throws IOException if the message was not accepted
+         */
+        public void sendMessage(String urlString, String message, String bodyPlaceholder, RichPushBody body, Map<String, String> requestProperties) throws IOException;
+    }
+
+    /**
+     * Outcome of a batch send
+     */
+    public static class BatchResult {
+        private final int acceptedCount;
+        private final Map<Integer, Exception> failures;
+
+        BatchResult(int acceptedCount, Map<Integer, Exception> failures) {
+            this.acceptedCount = acceptedCount;
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * Gets the number of messages the push API accepted
+         * @return The accepted count
+         */
+        public int getAcceptedCount() {
+            return acceptedCount;
+        }
+
+        /**
+         * Gets the messages that could not be sent
+         * @return The failure of each message, keyed by its index in the batch
+         */
+        public Map<Integer, Exception> getFailures() {
+            return failures;
+        }
+    }
+
+    private final String authorization;
+    private volatile PushTransport transport = new HttpUrlConnectionPushTransport();
+    private volatile CircuitBreaker circuitBreaker = CircuitBreaker.getInstance();
+    private volatile int maxRetries = MAX_SEND_MESG_RETRIES;
+    private volatile int retryDelay = SEND_MESG_RETRY_DELAY;
+    private volatile Clock clock = RealClock.getInstance();
+
+    /**
+     * Constructor for PushClient
+     * @param masterSecret The specified master secret for the app
+     * @param appKey The specified app key for the app
+     */
+    public PushClient(String masterSecret, String appKey) {
+        this.authorization = "Basic " + encodeBase64(String.format("%s:%s", appKey, masterSecret).getBytes());
+    }
+
+    /**
+     * Sets the transport used to send messages
+     * @param transport The specified transport
+     */
+    public void setTransport(PushTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Gets the transport used to send messages
+     * @return The transport
+     */
+    public PushTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the circuit breaker guarding the push endpoints
+     * @param circuitBreaker The specified circuit breaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Gets the circuit breaker guarding the push endpoints
+     * @return The circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the clock used for retry delays and call latency
+     * @param clock The specified clock
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the clock used for retry delays and call latency
+     * @return The clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets how many attempts a send makes before giving up
+     * @param maxRetries The number of attempts
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets the delay between attempts
+     * @param retryDelay The delay in milliseconds
+     */
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Opens connections to the url's host on a background thread, so the first send
+     * does not pay for the DNS lookup, connect and TLS handshake. Failures are only logged.
+     * @param urlString The specified url to open connections to
+     * @param connections The number of connections to have ready
+     * @return The warm up thread, join it to wait for the connections
+     */
+    public Thread warmUp(final String urlString, final int connections) {
+        final PushTransport warmTransport = transport;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                StepTracer.begin(StepTracer.CATEGORY_PUSH, "warmUp");
+                try {
+                    warmTransport.warmUp(urlString, connections);
+                    LOG.fine("Warmed up " + connections + " connections to " + urlString);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to warm up connections to " + urlString, e);
+                } finally {
+                    StepTracer.end();
+                }
+            }
+        }, "PushClient-warmUp");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Sends a message, building it again with a new unique alert id for each attempt
+     * @param urlString The specified url the message is sent to
+     * @param factory Builds the message for each attempt
+     * @param requestProperties The specified connection request property
+     * @param body The message body to stream into the message, or null to send the message as built
+     * @return The unique alert id of the last attempt
+     * @throws CircuitOpenException if the endpoint's circuit is open
+     * @throws Exception
+     */
+    public String send(String urlString, MessageFactory factory, Map<String, String> requestProperties, RichPushBody body) throws Exception {
+        StepTracer.begin(StepTracer.CATEGORY_PUSH, "sendMessage");
+        try {
+            int sendMesgRetryCount = 0;
+            String uniqueAlertId = "uniqueAlertId";
+            while ( sendMesgRetryCount < maxRetries ) {
+                uniqueAlertId = UUID.randomUUID().toString();
+                String bodyPlaceholder = body == null ? null : BODY_PLACEHOLDER_PREFIX + uniqueAlertId;
+                String json = factory.createMessage(uniqueAlertId, bodyPlaceholder);
+                LOG.fine("Created message to send" + json);
+
+                // Fails fast while the endpoint's circuit is open
+                circuitBreaker.acquire(urlString);
+
+                long startTime = clock.currentTimeMillis();
+                try {
+                    factory.sendMessage(urlString, json, bodyPlaceholder, body, requestProperties);
+                    circuitBreaker.recordSuccess(urlString, clock.currentTimeMillis() - startTime);
+                    return uniqueAlertId;
+                } catch (Exception ex) {
+                    LOG.log(Level.WARNING, "Failed to send message: " + json, ex);
+                    if (recordFailure(urlString, ex, clock.currentTimeMillis() - startTime)) {
+                        throw new CircuitOpenException(CircuitBreaker.getEndpoint(urlString), ex);
+                    }
+
+                    // A body read from a stream can't be sent again
+                    if (body != null && !body.isRepeatable()) {
+                        throw ex;
+                    }
+
+                    StepTracer.begin(StepTracer.CATEGORY_SLEEP, "SEND_MESG_RETRY_DELAY");
+                    try {
+                        clock.sleep(retryDelay);
+                    } finally {
+                        StepTracer.end();
+                    }
+                    sendMesgRetryCount++;
+                }
+            }
+            return uniqueAlertId;
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Sends prebuilt messages concurrently, each with the same retries as a single send.
+     * With a NioPushTransport the messages are sent without a thread per message.
+     * @param urlString The specified url the messages are sent to
+     * @param messages The json formatted messages to be sent
+     * @param requestProperties The specified connection request property
+     * @param parallelism The number of messages in flight at once
+     * @return The outcome of the batch
+     * @throws InterruptedException
+     */
+    public BatchResult sendBatch(final String urlString, List<String> messages, final Map<String, String> requestProperties, int parallelism) throws InterruptedException {
+        PushTransport batchTransport = transport;
+        if (batchTransport instanceof NioPushTransport) {
+            return sendBatchAsync((NioPushTransport) batchTransport, urlString, messages, requestProperties, parallelism);
+        }
+
+        final AtomicInteger acceptedCount = new AtomicInteger();
+        final Map<Integer, Exception> failures = Collections.synchronizedMap(new HashMap<Integer, Exception>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                final int index = i;
+                final String message = messages.get(i);
+                executor.execute(new Runnable() {
+                    public void run() {
+                        // send gives up quietly once the retries run out, so keep the last failure
+                        final IOException[] lastFailure = new IOException[1];
+                        try {
+                            send(urlString, new MessageFactory() {
+                                public String createMessage(String uniqueAlertId, String bodyPlaceholder) {
+                                    return message;
+                                }
+
+                                public void sendMessage(String urlString, String message, String bodyPlaceholder, RichPushBody body, Map<String, String> requestProperties) throws IOException {
+                                    lastFailure[0] = null;
+                                    try {
+                                        send(urlString, message, requestProperties);
+                                    } catch (IOException e) {
+                                        lastFailure[0] = e;
+                                        throw e;
+                                    }
+                                }
+                            }, requestProperties, null);
+
+                            if (lastFailure[0] != null) {
+                                failures.put(index, lastFailure[0]);
+                            } else {
+                                acceptedCount.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.put(index, e);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return new BatchResult(acceptedCount.get(), new HashMap<Integer, Exception>(failures));
+    }
+
+    /**
+     * Sends prebuilt messages through the transport's selector threads, with a semaphore
+     * capping the messages in flight and retries scheduled on a single timer thread
+     * @param nioTransport The specified transport
+     * @param urlString The specified url the messages are sent to
+     * @param messages The json formatted messages to be sent
+     * @param requestProperties The specified connection request property
+     * @param parallelism The number of messages in flight at once
+     * @return The outcome of the batch
+     * @throws InterruptedException
+     */
+    private BatchResult sendBatchAsync(NioPushTransport nioTransport, String urlString, List<String> messages, Map<String, String> requestProperties, int parallelism) throws InterruptedException {
+        StepTracer.begin(StepTracer.CATEGORY_PUSH, "sendBatch");
+        Batch batch = new Batch(nioTransport, urlString, createHeaders(requestProperties), messages.size(), parallelism);
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                batch.inFlight.acquire();
+                new BatchMessage(batch, i, messages.get(i)).attempt();
+            }
+            batch.finished.await();
+        } finally {
+            batch.retries.shutdownNow();
+            StepTracer.end();
+        }
+
+        return new BatchResult(batch.acceptedCount.get(), new HashMap<Integer, Exception>(batch.failures));
+    }
+
+    /**
+     * State shared by the messages of an asynchronous batch
+     */
+    private class Batch {
+        private final NioPushTransport transport;
+        private final String urlString;
+        private final Map<String, String> headers;
+        private final int maxRetries = PushClient.this.maxRetries;
+        private final int retryDelay = PushClient.this.retryDelay;
+        private final Semaphore inFlight;
+        private final CountDownLatch finished;
+        private final AtomicInteger acceptedCount = new AtomicInteger();
+        private final Map<Integer, Exception> failures = Collections.synchronizedMap(new HashMap<Integer, Exception>());
+        private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PushClient-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Batch(NioPushTransport transport, String urlString, Map<String, String> headers, int size, int parallelism) {
+            this.transport = transport;
+            this.urlString = urlString;
+            this.headers = headers;
+            this.inFlight = new Semaphore(parallelism);
+            this.finished = new CountDownLatch(size);
+        }
+    }
+
+    /**
+     * One message of an asynchronous batch. The callbacks run on a selector thread,
+     * so they only record the outcome or schedule the next attempt.
+     */
+    private class BatchMessage implements NioPushTransport.Callback {
+        private final Batch batch;
+        private final int index;
+        private final String message;
+        private int attempts = 0;
+        private long startTime;
+
+        BatchMessage(Batch batch, int index, String message) {
+            this.batch = batch;
+            this.index = index;
+            this.message = message;
+        }
+
+        void attempt() {
+            // Fails fast while the endpoint's circuit is open
+            try {
+                circuitBreaker.acquire(batch.urlString);
+            } catch (CircuitOpenException e) {
+                finish(e);
+                return;
+            }
+
+            attempts++;
+            startTime = clock.currentTimeMillis();
+            batch.transport.sendAsync(batch.urlString, message, batch.headers, this);
+        }
+
+        public void onResponse(PushResponse response) {
+            long latency = clock.currentTimeMillis() - startTime;
+            if (response.isAccepted()) {
+                circuitBreaker.recordSuccess(batch.urlString, latency);
+                LOG.fine("Push sent: " + message);
+                finish(null);
+            } else {
+                LOG.warning("Sending push failed with: " + response.getStatusCode() + " " + response.getStatusMessage() + " Message: " + message);
+                retryOrFinish(new PushResponseException(response.getStatusCode(), response.getStatusMessage()), latency);
+            }
+        }
+
+        public void onFailure(IOException exception) {
+            retryOrFinish(exception, clock.currentTimeMillis() - startTime);
+        }
+
+        private void retryOrFinish(IOException exception, long latency) {
+            LOG.log(Level.WARNING, "Failed to send message: " + message, exception);
+            if (recordFailure(batch.urlString, exception, latency)) {
+                finish(new CircuitOpenException(CircuitBreaker.getEndpoint(batch.urlString), exception));
+            } else if (attempts >= batch.maxRetries) {
+                finish(exception);
+            } else {
+                scheduleRetry(exception);
+            }
+        }
+
+        private void scheduleRetry(IOException exception) {
+            try {
+                if (clock instanceof RealClock) {
+                    batch.retries.schedule(new Runnable() {
+                        public void run() {
+                            attempt();
+                        }
+                    }, batch.retryDelay, TimeUnit.MILLISECONDS);
+                } else {
+                    // Let other clocks account for the delay, off the selector thread
+                    batch.retries.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                clock.sleep(batch.retryDelay);
+                            } catch (InterruptedException e) {
+                                finish(new InterruptedIOException("Interrupted while waiting to retry"));
+                                return;
+                            }
+                            attempt();
+                        }
+                    });
+                }
+            } catch (RejectedExecutionException e) {
+                // The batch was interrupted
+                finish(exception);
+            }
+        }
+
+        private void finish(Exception failure) {
+            if (failure == null) {
+                batch.acceptedCount.incrementAndGet();
+            } else {
+                batch.failures.put(index, failure);
+            }
+            batch.inFlight.release();
+            batch.finished.countDown();
+        }
+    }
+
+    /**
+     * Sends a message once
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent
+     * @param requestProperties The specified connection request property
+     * @throws IOException if the message was not accepted
+     */
+    public void send(String urlString, String message, Map<String, String> requestProperties) throws IOException {
+        StepTracer.begin(StepTracer.CATEGORY_PUSH, "sendMessageHelper");
+        try {
+            PushResponse response = transport.send(urlString, message, createHeaders(requestProperties));
+            checkResponse(response, message);
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Sends a message once, streaming the body into the placeholder's place
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent, holding bodyPlaceholder as a string value
+     * @param bodyPlaceholder The placeholder the body replaces
+     * @param body The message body
+     * @param requestProperties The specified connection request property
+     * @throws IOException if the message was not accepted
+     */
+    public void send(String urlString, String message, String bodyPlaceholder, RichPushBody body, Map<String, String> requestProperties) throws IOException {
+        StepTracer.begin(StepTracer.CATEGORY_PUSH, "sendMessageHelper");
+        try {
+            int index = message.indexOf("\"" + bodyPlaceholder + "\"");
+            if (index == -1) {
+                throw new IllegalArgumentException("Message does not hold the body placeholder: " + message);
+            }
+
+            String prefix = message.substring(0, index + 1);
+            String suffix = message.substring(index + 1 + bodyPlaceholder.length());
+            Reader reader = new JsonStringReader(prefix, body.openReader(), suffix);
+            PushResponse response;
+            try {
+                response = transport.send(urlString, reader, createHeaders(requestProperties));
+            } finally {
+                reader.close();
+            }
+            checkResponse(response, message);
+        } finally {
+            StepTracer.end();
+        }
+    }
+
+    /**
+     * Records a failed call with the circuit breaker. Only I/O errors, timeouts and 5xx responses
+     * count against the endpoint; a rejected request, such as a 401 for a bad app key, says the
+     * endpoint is up.
+     * @param urlString The url that was called
+     * @param exception The failure
+     * @param latency How long the call took, in milliseconds
+     * @return <code>true</code> if the failure opened the endpoint's circuit, otherwise <code>false</code>
+     */
+    private boolean recordFailure(String urlString, Exception exception, long latency) {
+        if (exception instanceof PushResponseException && !((PushResponseException) exception).isServerError()) {
+            circuitBreaker.recordSuccess(urlString, latency);
+        } else if (exception instanceof IOException) {
+            circuitBreaker.recordFailure(urlString);
+        } else {
+            circuitBreaker.release(urlString);
+        }
+        return circuitBreaker.getState(urlString) == CircuitBreaker.State.OPEN;
+    }
+
+    private void checkResponse(PushResponse response, String message) throws PushResponseException {
+        if (response.isAccepted()) {
+            LOG.fine("Push sent: " + message);
+        } else {
+            LOG.warning("Sending push failed with: " + response.getStatusCode() + " " + response.getStatusMessage() + " Message: " + message);
+            throw new PushResponseException(response.getStatusCode(), response.getStatusMessage());
+        }
+    }
+
+    private Map<String, String> createHeaders(Map<String, String> requestProperties) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Authorization", authorization);
+        if (requestProperties != null) {
+            headers.putAll(requestProperties);
+        }
+        return headers;
+    }
+
+    /**
+     * Encodes bytes as Base64 without line breaks
+     * @param data The bytes to encode
+     * @return The encoded string
+     */
+    static String encodeBase64(byte[] data) {
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xff;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+
+            encoded.append(BASE64_DIGITS[b0 >> 2]);
+            encoded.append(BASE64_DIGITS[((b0 & 0x03) << 4) | (b1 >> 4)]);
+            encoded.append(i + 1 < data.length ? BASE64_DIGITS[((b1 & 0x0f) << 2) | (b2 >> 6)] : '=');
+            encoded.append(i + 2 < data.length ? BASE64_DIGITS[b2 & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+}
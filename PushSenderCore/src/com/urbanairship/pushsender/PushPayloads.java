@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * Builds the JSON payloads for the push API
+ *
+ */
+public class PushPayloads {
+
+    private PushPayloads() {
+    }
+
+    /**
+     * Builds a push message for the original push API
+     * @param recipientString The string to append based on the type of push (user, alias, tag), or null to broadcast
+     * @param recipientValueString The value of the recipientString based on the type
+     * @param extras Any notification extras
+     * @param alert The alert text, usually a unique alert id
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    public static String createMessage(String recipientString, String recipientValueString, Map<String, String> extras, String alert) throws JSONException {
+        JSONObject jsonPayload = new JSONObject();
+        if (recipientString != null) {
+            JSONArray jsonPushArray = new JSONArray();
+            jsonPushArray.put(recipientValueString);
+            jsonPayload.put(recipientString, jsonPushArray);
+        }
+        JSONObject jsonAlert = new JSONObject();
+        jsonAlert.put("alert", alert);
+        jsonPayload.put("android", jsonAlert);
+        if (extras != null) {
+            JSONObject jsonExtras = new JSONObject(extras);
+            jsonPayload.put("extra", jsonExtras);
+        }
+        return jsonPayload.toString();
+    }
+
+    /**
+     * Builds a rich push message for the original airmail API
+     * @param recipientString The string to append based on the type of push (users, alias, tag), or null to broadcast
+     * @param recipientValueString The value of the recipientString based on the type
+     * @param extras Any notification extras
+     * @param alert The alert text, usually a unique alert id
+     * @param body The message body
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    public static String createRichMessage(String recipientString, String recipientValueString, Map<String, String> extras, String alert, String body) throws JSONException {
+        JSONObject jsonPayload = new JSONObject();
+        JSONObject jsonPush = new JSONObject();
+        if (recipientString != null) {
+            JSONArray jsonPushArray = new JSONArray();
+            jsonPushArray.put(recipientValueString);
+            jsonPayload.put(recipientString, jsonPushArray);
+        }
+        JSONObject jsonAlert = new JSONObject();
+        jsonAlert.put("alert", alert);
+        if (extras != null) {
+            JSONObject jsonExtras = new JSONObject(extras);
+            jsonAlert.put("extra", jsonExtras);
+        }
+        jsonPush.put("android", jsonAlert);
+        jsonPayload.put("push", jsonPush);
+        jsonPayload.put("title", "Rich Push " + alert);
+        jsonPayload.put("message", body);
+        jsonPayload.put("content-type", "text/html");
+
+        return jsonPayload.toString();
+    }
+
+    /**
+     * Builds a push message for APIv3
+     * @param recipientString The audience key, "audience" for a broadcast
+     * @param recipientValueString "all" to broadcast, otherwise a JSON object holding the audience selector
+     * @param alert The alert text, usually a unique alert id
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    public static String createApiV3Message(String recipientString, String recipientValueString, String alert) throws JSONException {
+        JSONObject jsonPayload = new JSONObject();
+        if (recipientValueString.equalsIgnoreCase("all")) {
+            jsonPayload.put(recipientString, recipientValueString);
+        } else {
+            JSONObject jsonAudience = new JSONObject();
+
+            JSONObject jsonAudienceType = new JSONObject(recipientValueString);
+            JSONArray namesArray = jsonAudienceType.names();
+            String name = namesArray.getString(0);
+            jsonAudience.put(name, jsonAudienceType.get(name));
+
+            jsonPayload.put("audience", jsonAudience);
+        }
+
+        JSONArray jsonDeviceType = new JSONArray();
+        jsonDeviceType.put("android");
+        jsonPayload.put("device_types", jsonDeviceType);
+
+        JSONObject jsonNotification = new JSONObject();
+        jsonNotification.put("alert", alert);
+        jsonPayload.put("notification", jsonNotification);
+
+        return jsonPayload.toString();
+    }
+
+    /**
+     * Builds a rich push message for APIv3
+     * @param recipientString The audience key, "audience" for a broadcast
+     * @param recipientValueString "all" to broadcast, otherwise a JSON object holding the audience selector
+     * @param alert The alert text, usually a unique alert id
+     * @param body The message body
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    public static String createRichApiV3Message(String recipientString, String recipientValueString, String alert, String body) throws JSONException {
+        return addRichApiV3Message(createApiV3Message(recipientString, recipientValueString, alert), alert, body);
+    }
+
+    /**
+     * Adds the rich push message to an APIv3 push message
+     * @param message The push message to add to
+     * @param alert The alert text, usually a unique alert id
+     * @param body The message body
+     * @return The message to be sent
+     * @throws JSONException
+     */
+    public static String addRichApiV3Message(String message, String alert, String body) throws JSONException {
+        JSONObject jsonPayload = new JSONObject(message);
+
+        JSONObject jsonMessage = new JSONObject();
+        jsonMessage.put("title", "Rich Push " + alert);
+        jsonMessage.put("body", body);
+        jsonMessage.put("content_type", "text/html");
+        jsonPayload.put("message", jsonMessage);
+
+        return jsonPayload.toString();
+    }
+}
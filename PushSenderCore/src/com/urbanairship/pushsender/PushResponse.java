@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+/**
+ * Response returned by a push transport
+ *
+ */
+public class PushResponse {
+    private final int statusCode;
+    private final String statusMessage;
+
+    /**
+     * Constructor for PushResponse
+     * @param statusCode The HTTP status code
+     * @param statusMessage The HTTP status message
+     */
+    public PushResponse(int statusCode, String statusMessage) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+    }
+
+    /**
+     * Gets the HTTP status code
+     * @return The status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Gets the HTTP status message
+     * @return The status message
+     */
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * Checks if the push API accepted the message
+     * @return <code>true</code> if the status is 200 or 202, otherwise <code>false</code>
+     */
+    public boolean isAccepted() {
+        return statusCode == 200 || statusCode == 202;
+    }
+
+    @Override
+    public String toString() {
+        return statusCode + " " + statusMessage;
+    }
+}
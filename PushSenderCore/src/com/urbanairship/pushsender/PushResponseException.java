@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the push API answers a request without accepting it
+ *
+ */
+public class PushResponseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String statusMessage;
+
+    /**
+     * Constructor for PushResponseException
+     * @param statusCode The specified HTTP status code
+     * @param statusMessage The specified HTTP status message
+     */
+    public PushResponseException(int statusCode, String statusMessage) {
+        super("Push API responded " + statusCode + " " + statusMessage);
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+    }
+
+    /**
+     * Gets the HTTP status code
+     * @return The status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Gets the HTTP status message
+     * @return The status message
+     */
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * Checks if the push API itself failed, rather than rejecting the request
+     * @return <code>true</code> if the status is 5xx, otherwise <code>false</code>
+     */
+    public boolean isServerError() {
+        return statusCode >= 500;
+    }
+}
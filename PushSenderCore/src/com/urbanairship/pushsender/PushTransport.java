@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * Transport used by the push senders to deliver a request to the push API
+ *
+ */
+public interface PushTransport {
+
+    /**
+     * Sends the message and blocks until the response status is known
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent
+     * @param requestProperties The request headers, including authorization
+     * @return The response of the push API
+     * @throws IOException
+     */
+    public PushResponse send(String urlString, String message, Map<String, String> requestProperties) throws IOException;
+
+    /**
+     * Sends a message read from a reader using chunked transfer encoding, so the
+     * message is never held in memory as a whole
+     * @param urlString The specified url the message is sent to
+     * @param message The json formatted message to be sent, not closed by this method
+     * @param requestProperties The request headers, including authorization
+     * @return The response of the push API
+     * @throws IOException
+     */
+    public PushResponse send(String urlString, Reader message, Map<String, String> requestProperties) throws IOException;
+
+    /**
+     * Resolves the url's host and connects to it ahead of the first send, so that send
+     * skips the DNS lookup, connect and full TLS handshake where the transport allows
+     * @param urlString The specified url to open connections to
+     * @param connections The number of connections to have ready
+     * @throws IOException
+     */
+    public void warmUp(String urlString, int connections) throws IOException;
+
+    /**
+     * Releases any threads or connections held by the transport
+     */
+    public void close();
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+/**
+ * Clock backed by the system time and Thread.sleep
+ *
+ */
+public class RealClock implements Clock {
+    private static final RealClock instance = new RealClock();
+
+    /**
+     * Gets the system clock
+     * @return The clock
+     */
+    public static RealClock getInstance() {
+        return instance;
+    }
+
+    private RealClock() {
+    }
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public void sleep(long timeInMilliseconds) throws InterruptedException {
+        if (timeInMilliseconds > 0) {
+            Thread.sleep(timeInMilliseconds);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Body of a rich push message that is streamed into the request instead of held in a String
+ *
+ */
+public abstract class RichPushBody {
+
+    /**
+     * Opens a reader over the body text. The caller closes it.
+     * @return The reader
+     * @throws IOException
+     */
+    public abstract Reader openReader() throws IOException;
+
+    /**
+     * Checks if the body can be read more than once, which a retry needs
+     * @return <code>true</code> if openReader can be called again, otherwise <code>false</code>
+     */
+    public abstract boolean isRepeatable();
+
+    /**
+     * Creates a body backed by a char sequence, read without copying it
+     * @param body The body text
+     * @return The rich push body
+     */
+    public static RichPushBody fromCharSequence(final CharSequence body) {
+        return new RichPushBody() {
+            @Override
+            public Reader openReader() {
+                return new CharBufferReader(CharBuffer.wrap(body));
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates a body read from a UTF-8 file each time it is sent
+     * @param file The file holding the body text
+     * @return The rich push body
+     */
+    public static RichPushBody fromFile(final File file) {
+        return new RichPushBody() {
+            @Override
+            public Reader openReader() throws IOException {
+                return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates a body read from a UTF-8 stream. The stream can only be sent once, so a failed send is not retried.
+     * @param in The stream holding the body text, closed once sent
+     * @return The rich push body
+     */
+    public static RichPushBody fromInputStream(final InputStream in) {
+        return new RichPushBody() {
+            private boolean opened = false;
+
+            @Override
+            public synchronized Reader openReader() throws IOException {
+                if (opened) {
+                    throw new IOException("The body stream has already been read");
+                }
+                opened = true;
+                return new InputStreamReader(in, "UTF-8");
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Reader over a char buffer
+     */
+    private static class CharBufferReader extends Reader {
+        private final CharBuffer buffer;
+
+        CharBufferReader(CharBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(cbuf, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
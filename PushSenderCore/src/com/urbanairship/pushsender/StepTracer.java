@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in tracer that records nested begin/end spans of automation steps and
+ * writes them as Chrome trace-event JSON (load the file in chrome://tracing).
+ * Recording is a no-op until start is called.
+ *
+ */
+public class StepTracer {
+    public static final String CATEGORY_HELPER = "helper";
+    public static final String CATEGORY_WAIT = "wait";
+    public static final String CATEGORY_SCROLL = "scroll";
+    public static final String CATEGORY_SLEEP = "sleep";
+    public static final String CATEGORY_PUSH = "push";
+
+    private static int DEFAULT_CAPACITY = 65536;
+
+    private static volatile Buffer buffer;
+
+    /**
+     * Preallocated event storage so recording a span never allocates
+     */
+    private static class Buffer {
+        private final long startTime = System.nanoTime();
+        private final AtomicInteger next = new AtomicInteger();
+        private final long[] timestamps;
+        private final long[] threadIds;
+        private final boolean[] begins;
+        private final String[] categories;
+        private final String[] names;
+
+        Buffer(int capacity) {
+            timestamps = new long[capacity];
+            threadIds = new long[capacity];
+            begins = new boolean[capacity];
+            categories = new String[capacity];
+            names = new String[capacity];
+        }
+
+        void record(boolean begin, String category, String name) {
+            int index = next.getAndIncrement();
+            if (index >= timestamps.length) {
+                // Full, drop the event
+                return;
+            }
+
+            timestamps[index] = System.nanoTime();
+            threadIds[index] = Thread.currentThread().getId();
+            begins[index] = begin;
+            categories[index] = category;
+            names[index] = name;
+        }
+
+        int size() {
+            return Math.min(next.get(), timestamps.length);
+        }
+    }
+
+    private StepTracer() {
+    }
+
+    /**
+     * Starts recording with the default capacity, discarding any previous events
+     */
+    public static void start() {
+        start(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts recording, discarding any previous events
+     * @param capacity The maximum number of events to keep, later events are dropped
+     */
+    public static void start(int capacity) {
+        buffer = new Buffer(capacity);
+    }
+
+    /**
+     * Stops recording and discards the events
+     */
+    public static void stop() {
+        buffer = null;
+    }
+
+    /**
+     * Checks if spans are being recorded
+     * @return <code>true</code> if recording, otherwise <code>false</code>
+     */
+    public static boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * Begins a span on the current thread. Every begin must be matched by an end,
+     * usually from a finally block.
+     * @param category The category of the step, such as CATEGORY_WAIT
+     * @param name The name of the step
+     */
+    public static void begin(String category, String name) {
+        Buffer current = buffer;
+        if (current != null) {
+            current.record(true, category, name);
+        }
+    }
+
+    /**
+     * Ends the innermost open span on the current thread
+     */
+    public static void end() {
+        Buffer current = buffer;
+        if (current != null) {
+            current.record(false, null, null);
+        }
+    }
+
+    /**
+     * Gets the number of events dropped because the buffer was full
+     * @return The dropped event count
+     */
+    public static int getDroppedCount() {
+        Buffer current = buffer;
+        return current == null ? 0 : Math.max(0, current.next.get() - current.timestamps.length);
+    }
+
+    /**
+     * Writes the recorded events as Chrome trace-event JSON to a file
+     * @param filePath The path of the file to write
+     * @throws IOException
+     */
+    public static void writeTrace(String filePath) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filePath), "UTF-8"));
+        try {
+            writeTrace(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the recorded events as Chrome trace-event JSON. Call this once the traced
+     * steps have finished, events still being recorded may be missing.
+     * @param writer The writer to write to, not closed by this method
+     * @throws IOException
+     */
+    public static void writeTrace(Writer writer) throws IOException {
+        Buffer current = buffer;
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+        int size = current == null ? 0 : current.size();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                writer.write(",\n");
+            }
+
+            writer.write("{\"ph\":\"");
+            writer.write(current.begins[i] ? "B" : "E");
+            writer.write("\",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(current.threadIds[i]));
+            writer.write(",\"ts\":");
+            writer.write(Long.toString((current.timestamps[i] - current.startTime) / 1000));
+            if (current.begins[i]) {
+                writer.write(",\"cat\":");
+                writer.write(JSONObject.quote(current.categories[i]));
+                writer.write(",\"name\":");
+                writer.write(JSONObject.quote(current.names[i]));
+            }
+            writer.write("}");
+        }
+
+        writer.write("]}");
+        writer.flush();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+/**
+ * Deterministic clock for tests. Time only moves when a caller sleeps or the test
+ * advances it, so sleeps return immediately and timeouts expire without waiting.
+ *
+ */
+public class VirtualClock implements Clock {
+    private long currentTime;
+    private long totalSleepTime = 0;
+    private int sleepCount = 0;
+
+    /**
+     * Constructor for VirtualClock, starting at time 0
+     */
+    public VirtualClock() {
+        this(0);
+    }
+
+    /**
+     * Constructor for VirtualClock
+     * @param startTime The time the clock starts at, in milliseconds
+     */
+    public VirtualClock(long startTime) {
+        this.currentTime = startTime;
+    }
+
+    public synchronized long currentTimeMillis() {
+        return currentTime;
+    }
+
+    /**
+     * Moves the time forward by the specified time without blocking
+     * @param timeInMilliseconds The time to sleep
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public synchronized void sleep(long timeInMilliseconds) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        sleepCount++;
+        if (timeInMilliseconds > 0) {
+            currentTime += timeInMilliseconds;
+            totalSleepTime += timeInMilliseconds;
+        }
+    }
+
+    /**
+     * Moves the time forward, as if the time passed while doing work
+     * @param timeInMilliseconds The time to move forward
+     */
+    public synchronized void advance(long timeInMilliseconds) {
+        if (timeInMilliseconds < 0) {
+            throw new IllegalArgumentException("Time can't move backwards");
+        }
+        currentTime += timeInMilliseconds;
+    }
+
+    /**
+     * Gets the number of times sleep was called
+     * @return The sleep count
+     */
+    public synchronized int getSleepCount() {
+        return sleepCount;
+    }
+
+    /**
+     * Gets the total time callers asked to sleep
+     * @return The total sleep time in milliseconds
+     */
+    public synchronized long getTotalSleepTime() {
+        return totalSleepTime;
+    }
+}
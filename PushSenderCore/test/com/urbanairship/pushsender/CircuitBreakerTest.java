@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for CircuitBreaker state changes
+ *
+ */
+public class CircuitBreakerTest {
+    private static final String URL = "https://go.urbanairship.com/api/push/";
+    private static final String OTHER_URL = "https://example.com/api/push/";
+
+    private CircuitBreaker circuitBreaker;
+    private List<String> changes;
+
+    @Before
+    public void setUp() {
+        // The circuit may probe again as soon as it opens
+        circuitBreaker = new CircuitBreaker(10, 3, 50, 1000, 0);
+        changes = new ArrayList<String>();
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            public void onStateChanged(String endpoint, CircuitBreaker.State previousState, CircuitBreaker.State state) {
+                changes.add(previousState + "->" + state);
+            }
+        });
+    }
+
+    @Test
+    public void testOpensAtFailureRate() throws Exception {
+        failCall(URL);
+        failCall(URL);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(URL));
+
+        failCall(URL);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+        assertEquals("[CLOSED->OPEN]", changes.toString());
+    }
+
+    @Test
+    public void testStaysClosedBelowFailureRate() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            if (i % 3 == 0) {
+                failCall(URL);
+            } else {
+                succeedCall(URL, 0);
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(URL));
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailures() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            succeedCall(URL, 2000);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+    }
+
+    @Test
+    public void testEndpointsAreSeparate() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            failCall(URL);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(OTHER_URL));
+        circuitBreaker.acquire(OTHER_URL);
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws Exception {
+        circuitBreaker = new CircuitBreaker(10, 3, 50, 1000, 60000);
+        openCircuit(circuitBreaker);
+
+        assertAcquireFails();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+    }
+
+    @Test
+    public void testProbeClosesCircuit() throws Exception {
+        openCircuit(circuitBreaker);
+
+        circuitBreaker.acquire(URL);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(URL));
+        assertAcquireFails();
+
+        circuitBreaker.recordSuccess(URL, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(URL));
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", changes.toString());
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() throws Exception {
+        openCircuit(circuitBreaker);
+
+        circuitBreaker.acquire(URL);
+        circuitBreaker.recordFailure(URL);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->OPEN]", changes.toString());
+    }
+
+    @Test
+    public void testReleaseAllowsAnotherProbe() throws Exception {
+        openCircuit(circuitBreaker);
+
+        circuitBreaker.acquire(URL);
+        circuitBreaker.release(URL);
+        circuitBreaker.acquire(URL);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(URL));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        openCircuit(circuitBreaker);
+
+        circuitBreaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(URL));
+    }
+
+    private void openCircuit(CircuitBreaker breaker) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire(URL);
+            breaker.recordFailure(URL);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(URL));
+    }
+
+    private void assertAcquireFails() {
+        try {
+            circuitBreaker.acquire(URL);
+            fail("Expected the circuit to be open");
+        } catch (CircuitOpenException e) {
+            assertEquals("https://go.urbanairship.com:443", e.getEndpoint());
+        }
+    }
+
+    private void failCall(String urlString) throws Exception {
+        circuitBreaker.acquire(urlString);
+        circuitBreaker.recordFailure(urlString);
+    }
+
+    private void succeedCall(String urlString, long latency) throws Exception {
+        circuitBreaker.acquire(urlString);
+        circuitBreaker.recordSuccess(urlString, latency);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for HttpUrlConnectionPushTransport against a local HTTP server
+ *
+ */
+public class HttpUrlConnectionPushTransportTest {
+    private static int SLOW_RESPONSE_TIME = 2000;  // 2 seconds
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() != -1) {
+                    // Drain the request
+                }
+
+                if (exchange.getRequestURI().getPath().equals("/slow")) {
+                    try {
+                        Thread.sleep(SLOW_RESPONSE_TIME);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                exchange.sendResponseHeaders(202, -1);
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(2);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        url = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testSend() throws IOException {
+        PushResponse response = new HttpUrlConnectionPushTransport().send(url + "/api/push/", "{}", null);
+
+        assertEquals(202, response.getStatusCode());
+        assertTrue(response.isAccepted());
+    }
+
+    @Test
+    public void testReadTimeout() throws IOException {
+        HttpUrlConnectionPushTransport transport = new HttpUrlConnectionPushTransport(SLOW_RESPONSE_TIME / 4);
+
+        long startTime = System.currentTimeMillis();
+        try {
+            transport.send(url + "/slow", "{}", null);
+            fail("Expected the request to time out");
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - startTime < SLOW_RESPONSE_TIME);
+        }
+    }
+}
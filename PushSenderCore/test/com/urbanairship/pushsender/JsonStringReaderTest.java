@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Tests for JsonStringReader escaping
+ *
+ */
+public class JsonStringReaderTest {
+
+    @Test
+    public void testEscapesValue() throws IOException {
+        String value = "quote \" backslash \\ controls \b\f\n\r\t \u0001 separators \u2028\u2029 text \u00e9\u20ac";
+        String expected = "{\"a\":\"quote \\\" backslash \\\\ controls \\b\\f\\n\\r\\t \\u0001 separators \\u2028\\u2029 text \u00e9\u20ac\"}";
+
+        assertEquals(expected, readAll(new JsonStringReader("{\"a\":\"", new StringReader(value), "\"}"), 8192));
+    }
+
+    @Test
+    public void testEmptyValue() throws IOException {
+        assertEquals("{\"a\":\"\"}", readAll(new JsonStringReader("{\"a\":\"", new StringReader(""), "\"}"), 8192));
+    }
+
+    @Test
+    public void testSmallReads() throws IOException {
+        String value = "line\nwith \"quotes\"";
+        String expected = "[\"line\\nwith \\\"quotes\\\"\"]";
+
+        assertEquals(expected, readAll(new JsonStringReader("[\"", new StringReader(value), "\"]"), 1));
+        assertEquals(expected, readAll(new JsonStringReader("[\"", new StringReader(value), "\"]"), 3));
+    }
+
+    @Test
+    public void testLongValue() throws IOException {
+        StringBuilder value = new StringBuilder();
+        StringBuilder expected = new StringBuilder("\"");
+        for (int i = 0; i < 10000; i++) {
+            value.append("a\"");
+            expected.append("a\\\"");
+        }
+        expected.append("\"");
+
+        assertEquals(expected.toString(), readAll(new JsonStringReader("\"", new StringReader(value.toString()), "\""), 1000));
+    }
+
+    @Test
+    public void testZeroLengthRead() throws IOException {
+        JsonStringReader reader = new JsonStringReader("[\"", new StringReader("a"), "\"]");
+        assertEquals(0, reader.read(new char[1], 0, 0));
+    }
+
+    @Test
+    public void testCloseClosesValue() throws IOException {
+        final boolean[] closed = new boolean[1];
+        Reader value = new StringReader("a") {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        new JsonStringReader("[\"", value, "\"]").close();
+        assertTrue(closed[0]);
+    }
+
+    private static String readAll(Reader reader, int bufferSize) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int count;
+        while ((count = reader.read(buffer, 0, bufferSize)) != -1) {
+            content.append(buffer, 0, count);
+        }
+        return content.toString();
+    }
+}
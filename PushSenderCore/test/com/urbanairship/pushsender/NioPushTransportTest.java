@@ -0,0 +1,432 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for NioPushTransport against a local HTTP server
+ *
+ */
+public class NioPushTransportTest {
+    private static int SLOW_RESPONSE_TIME = 2000;  // 2 seconds
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private NioPushTransport transport;
+    private String url;
+    private volatile String lastBody;
+    private volatile String lastTransferEncoding;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                lastBody = readBody(exchange.getRequestBody());
+                lastTransferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+
+                String path = exchange.getRequestURI().getPath();
+                int statusCode = 202;
+                if (path.startsWith("/status/")) {
+                    statusCode = Integer.parseInt(path.substring("/status/".length()));
+                } else if (path.equals("/slow")) {
+                    try {
+                        Thread.sleep(SLOW_RESPONSE_TIME);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                exchange.sendResponseHeaders(statusCode, -1);
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        url = "http://localhost:" + server.getAddress().getPort();
+        transport = new NioPushTransport(2, 10000);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testSend() throws IOException {
+        Map<String, String> requestProperties = new HashMap<String, String>();
+        requestProperties.put("Content-Type", "application/json");
+
+        PushResponse response = transport.send(url + "/api/push/", "{\"a\":\"\u00e9\"}", requestProperties);
+
+        assertEquals(202, response.getStatusCode());
+        assertTrue(response.isAccepted());
+        assertEquals("{\"a\":\"\u00e9\"}", lastBody);
+    }
+
+    @Test
+    public void testSendReturnsStatus() throws IOException {
+        PushResponse response = transport.send(url + "/status/503", "{}", null);
+
+        assertEquals(503, response.getStatusCode());
+        assertEquals("Service Unavailable", response.getStatusMessage());
+    }
+
+    @Test
+    public void testSendReaderInChunks() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            body.append("\u00e9\u20ac\ud83d\ude00x");
+        }
+
+        PushResponse response = transport.send(url + "/api/push/", new StringReader(body.toString()), null);
+
+        assertEquals(202, response.getStatusCode());
+        assertEquals("chunked", lastTransferEncoding);
+        assertEquals(body.toString(), lastBody);
+    }
+
+    @Test
+    public void testSendEmptyReader() throws IOException {
+        transport.send(url + "/api/push/", new StringReader(""), null);
+
+        assertEquals("", lastBody);
+    }
+
+    @Test
+    public void testReaderFailureFailsSend() {
+        Reader reader = new Reader() {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("Read failed");
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release
+            }
+        };
+
+        try {
+            transport.send(url + "/api/push/", reader, null);
+            fail("Expected the read failure");
+        } catch (IOException e) {
+            assertEquals("Read failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSlowReaderDoesNotBlockOtherRequests() throws Exception {
+        transport.close();
+        transport = new NioPushTransport(1, 10000);
+
+        final CountDownLatch readerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseReader = new CountDownLatch(1);
+        Reader slowReader = new Reader() {
+            private boolean done = false;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (done) {
+                    return -1;
+                }
+                readerBlocked.countDown();
+                try {
+                    releaseReader.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                cbuf[off] = 'a';
+                done = true;
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release
+            }
+        };
+
+        ResultCallback slowCallback = new ResultCallback();
+        transport.sendAsync(url + "/api/push/", slowReader, null, slowCallback);
+        assertTrue(readerBlocked.await(5, TimeUnit.SECONDS));
+
+        // The only selector thread is free while the reader blocks
+        assertEquals(202, transport.send(url + "/api/push/", "{}", null).getStatusCode());
+
+        releaseReader.countDown();
+        assertEquals(202, slowCallback.await().getStatusCode());
+        assertEquals("a", lastBody);
+    }
+
+    @Test
+    public void testManyStreamedSendsShareReadThreads() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            body.append("0123456789");
+        }
+
+        // Far more streams than read threads, each longer than the chunks read ahead
+        int count = 40;
+        ResultCallback[] callbacks = new ResultCallback[count];
+        for (int i = 0; i < count; i++) {
+            callbacks[i] = new ResultCallback();
+            transport.sendAsync(url + "/api/push/", new StringReader(body.toString()), null, callbacks[i]);
+        }
+
+        for (ResultCallback callback : callbacks) {
+            assertEquals(202, callback.await().getStatusCode());
+        }
+        assertEquals(body.toString(), lastBody);
+    }
+
+    @Test
+    public void testManyAsyncSends() throws Exception {
+        int count = 200;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<IOException> failures = new ArrayList<IOException>();
+
+        for (int i = 0; i < count; i++) {
+            transport.sendAsync(url + "/api/push/", "{\"i\":" + i + "}", null, new NioPushTransport.Callback() {
+                public void onResponse(PushResponse response) {
+                    if (response.isAccepted()) {
+                        accepted.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                public void onFailure(IOException exception) {
+                    synchronized (failures) {
+                        failures.add(exception);
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals("[]", failures.toString());
+        assertEquals(count, accepted.get());
+    }
+
+    @Test
+    public void testWarmUpKeepsIdleConnections() throws IOException {
+        transport.warmUp(url + "/api/push/", 2);
+        assertEquals(2, transport.getIdleConnectionCount(url + "/api/push/"));
+
+        assertEquals(202, transport.send(url + "/api/push/", "{}", null).getStatusCode());
+        assertEquals(1, transport.getIdleConnectionCount(url + "/api/push/"));
+    }
+
+    @Test
+    public void testClosedIdleConnectionIsReplaced() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+        final CountDownLatch closeIdle = new CountDownLatch(1);
+        final CountDownLatch idleClosed = new CountDownLatch(1);
+        final AtomicInteger connections = new AtomicInteger();
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    // The warmed up connection is closed without a response
+                    Socket idle = serverSocket.accept();
+                    connections.incrementAndGet();
+                    closeIdle.await();
+                    idle.close();
+                    idleClosed.countDown();
+
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    InputStream in = socket.getInputStream();
+                    int matched = 0;
+                    while (matched < 4) {
+                        int c = in.read();
+                        if (c == -1) {
+                            break;
+                        }
+                        matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : (c == '\r' ? 1 : 0);
+                    }
+                    socket.getOutputStream().write("HTTP/1.1 202 Accepted\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+                    socket.close();
+                } catch (Exception e) {
+                    // The test fails on the missing response
+                }
+            }
+        });
+        serverThread.start();
+
+        try {
+            String rawUrl = "http://localhost:" + serverSocket.getLocalPort() + "/api/push/";
+            transport.warmUp(rawUrl, 1);
+            closeIdle.countDown();
+            assertTrue(idleClosed.await(5, TimeUnit.SECONDS));
+
+            assertEquals(202, transport.send(rawUrl, "{}", null).getStatusCode());
+            assertEquals(2, connections.get());
+            assertEquals(0, transport.getIdleConnectionCount(rawUrl));
+        } finally {
+            serverSocket.close();
+            serverThread.join(5000);
+        }
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        transport.close();
+        transport = new NioPushTransport(1, SLOW_RESPONSE_TIME / 4);
+
+        try {
+            transport.send(url + "/slow", "{}", null);
+            fail("Expected the request to time out");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUnknownHostFailsCallback() throws Exception {
+        ResultCallback callback = new ResultCallback();
+        transport.sendAsync("http://unknown-host.invalid/api/push/", "{}", null, callback);
+
+        try {
+            callback.await();
+            fail("Expected the host lookup to fail");
+        } catch (UnknownHostException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testClosedTransportFailsSend() {
+        transport.close();
+
+        try {
+            transport.send(url + "/api/push/", "{}", null);
+            fail("Expected the send to fail");
+        } catch (IOException e) {
+            assertEquals("Transport is closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testProxiedEndpointIsRefused() {
+        ProxySelector defaultSelector = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy.invalid", 8080)));
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException exception) {
+                // Nothing to update
+            }
+        });
+
+        try {
+            transport.send(url + "/api/push/", "{}", null);
+            fail("Expected the proxied send to be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("proxy"));
+        } finally {
+            ProxySelector.setDefault(defaultSelector);
+        }
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        PushClient client = new PushClient("secret", "key");
+        client.setTransport(transport);
+        client.setCircuitBreaker(new CircuitBreaker());
+
+        List<String> messages = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            messages.add("{\"i\":" + i + "}");
+        }
+
+        PushClient.BatchResult result = client.sendBatch(url + "/api/push/", messages, null, 10);
+
+        assertEquals(100, result.getAcceptedCount());
+        assertTrue(result.getFailures().isEmpty());
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Callback that lets the test wait for the result
+     */
+    private static class ResultCallback implements NioPushTransport.Callback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile PushResponse response;
+        private volatile IOException failure;
+
+        public void onResponse(PushResponse response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        public void onFailure(IOException exception) {
+            this.failure = exception;
+            latch.countDown();
+        }
+
+        PushResponse await() throws Exception {
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+            if (failure != null) {
+                throw failure;
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for PushClient retries, circuit breaker classification and encoding
+ *
+ */
+public class PushClientTest {
+    private static final String URL = "https://go.urbanairship.com/api/push/";
+
+    private InMemoryPushTransport transport;
+    private CircuitBreaker circuitBreaker;
+    private PushClient client;
+    private TestMessageFactory factory;
+    private List<String> alertIds;
+
+    @Before
+    public void setUp() {
+        transport = new InMemoryPushTransport();
+        circuitBreaker = new CircuitBreaker();
+        client = new PushClient("secret", "key");
+        client.setTransport(transport);
+        client.setCircuitBreaker(circuitBreaker);
+        client.setRetryDelay(0);
+        factory = new TestMessageFactory(client);
+        alertIds = factory.getAlertIds();
+    }
+
+    @Test
+    public void testSendAddsHeaders() throws Exception {
+        client.send(URL, factory, null, null);
+
+        Map<String, String> properties = transport.getRequests().get(0).getRequestProperties();
+        assertEquals("Basic a2V5OnNlY3JldA==", properties.get("Authorization"));
+        assertEquals("application/json", properties.get("Content-Type"));
+    }
+
+    @Test
+    public void testRetriesUntilAccepted() throws Exception {
+        transport.enqueueResponse(503, "Service Unavailable");
+        transport.enqueueFailure(new IOException("Connection reset"));
+
+        String uniqueAlertId = client.send(URL, factory, null, null);
+
+        assertEquals(3, transport.getRequests().size());
+        assertEquals(3, alertIds.size());
+        assertEquals(alertIds.get(2), uniqueAlertId);
+        assertFalse(alertIds.get(0).equals(alertIds.get(1)));
+    }
+
+    @Test
+    public void testStopsAfterMaxRetries() throws Exception {
+        transport.setDefaultResponse(400, "Bad Request");
+        client.setMaxRetries(2);
+
+        client.send(URL, factory, null, null);
+
+        assertEquals(2, transport.getRequests().size());
+    }
+
+    @Test
+    public void testClientErrorsDoNotOpenCircuit() throws Exception {
+        transport.setDefaultResponse(401, "Unauthorized");
+
+        for (int i = 0; i < 5; i++) {
+            client.send(URL, factory, null, null);
+        }
+
+        assertEquals(15, transport.getRequests().size());
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(URL));
+    }
+
+    @Test
+    public void testServerErrorsOpenCircuitWithCause() throws Exception {
+        transport.setDefaultResponse(500, "Internal Server Error");
+
+        try {
+            client.send(URL, factory, null, null);
+            fail("Expected the circuit to open");
+        } catch (CircuitOpenException e) {
+            assertEquals("https://go.urbanairship.com:443", e.getEndpoint());
+            assertTrue(e.getCause() instanceof PushResponseException);
+            assertEquals(500, ((PushResponseException) e.getCause()).getStatusCode());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+
+        // An open circuit fails without sending
+        int sent = transport.getRequests().size();
+        try {
+            client.send(URL, factory, null, null);
+            fail("Expected the circuit to be open");
+        } catch (CircuitOpenException e) {
+            assertEquals(sent, transport.getRequests().size());
+        }
+    }
+
+    @Test
+    public void testStreamsBodyIntoPlaceholder() throws Exception {
+        client.send(URL, factory, null, RichPushBody.fromCharSequence("say \"hi\"\n"));
+
+        String message = transport.getRequests().get(0).getMessage();
+        assertEquals("{\"id\":\"" + alertIds.get(0) + "\",\"body\":\"say \\\"hi\\\"\\n\"}", message);
+    }
+
+    @Test
+    public void testStreamedBodyIsNotRetried() throws Exception {
+        transport.enqueueResponse(503, "Service Unavailable");
+        RichPushBody body = RichPushBody.fromInputStream(new ByteArrayInputStream("body".getBytes("UTF-8")));
+
+        try {
+            client.send(URL, factory, null, body);
+            fail("Expected the failure to be thrown");
+        } catch (PushResponseException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(1, transport.getRequests().size());
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        PushClient.BatchResult result = client.sendBatch(URL, Arrays.asList("{}", "{}", "{}"), null, 2);
+
+        assertEquals(3, result.getAcceptedCount());
+        assertTrue(result.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testSendBatchReportsMessagesOutOfRetries() throws Exception {
+        transport.setDefaultResponse(400, "Bad Request");
+        client.setMaxRetries(1);
+
+        PushClient.BatchResult result = client.sendBatch(URL, Arrays.asList("{}", "{}"), null, 2);
+
+        assertEquals(0, result.getAcceptedCount());
+        assertEquals(2, result.getFailures().size());
+        assertTrue(result.getFailures().get(1) instanceof PushResponseException);
+    }
+
+    @Test
+    public void testEncodeBase64() throws Exception {
+        assertEquals("", PushClient.encodeBase64("".getBytes("US-ASCII")));
+        assertEquals("Zg==", PushClient.encodeBase64("f".getBytes("US-ASCII")));
+        assertEquals("Zm8=", PushClient.encodeBase64("fo".getBytes("US-ASCII")));
+        assertEquals("Zm9v", PushClient.encodeBase64("foo".getBytes("US-ASCII")));
+        assertEquals("Zm9vYg==", PushClient.encodeBase64("foob".getBytes("US-ASCII")));
+        assertEquals("Zm9vYmE=", PushClient.encodeBase64("fooba".getBytes("US-ASCII")));
+        assertEquals("Zm9vYmFy", PushClient.encodeBase64("foobar".getBytes("US-ASCII")));
+        assertEquals("/+8=", PushClient.encodeBase64(new byte[] { (byte) 0xff, (byte) 0xef }));
+    }
+}
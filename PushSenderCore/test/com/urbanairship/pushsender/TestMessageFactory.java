@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message factory for tests. Builds a message holding the alert id and the body placeholder,
+ * records the alert ids it was given and sends through a PushClient
+ *
+ */
+class TestMessageFactory implements PushClient.MessageFactory {
+    private final PushClient client;
+    private final List<String> alertIds = new ArrayList<String>();
+
+    /**
+     * Constructor for TestMessageFactory
+     * @param client The specified client to send the messages through
+     */
+    TestMessageFactory(PushClient client) {
+        this.client = client;
+    }
+
+    public String createMessage(String uniqueAlertId, String bodyPlaceholder) {
+        alertIds.add(uniqueAlertId);
+        if (bodyPlaceholder == null) {
+            return "{\"id\":\"" + uniqueAlertId + "\"}";
+        }
+        return "{\"id\":\"" + uniqueAlertId + "\",\"body\":\"" + bodyPlaceholder + "\"}";
+    }
+
+    public void sendMessage(String urlString, String message, String bodyPlaceholder, RichPushBody body, Map<String, String> requestProperties) throws IOException {
+        if (body == null) {
+            client.send(urlString, message, requestProperties);
+        } else {
+            client.send(urlString, message, bodyPlaceholder, body, requestProperties);
+        }
+    }
+
+    /**
+     * Gets the alert ids of the messages created so far
+     * @return The alert ids, oldest first
+     */
+    List<String> getAlertIds() {
+        return alertIds;
+    }
+}
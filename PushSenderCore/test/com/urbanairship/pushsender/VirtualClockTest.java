@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Urban Airship
+ */
+
+package com.urbanairship.pushsender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests for VirtualClock, and for the retries and circuit recovery that run on it
+ *
+ */
+public class VirtualClockTest {
+    private static final String URL = "https://go.urbanairship.com/api/push/";
+    private static int RETRY_DELAY = 3000;  // 3 seconds
+    private static int OPEN_TIME = 30000;  // 30 seconds
+
+    private VirtualClock clock;
+    private InMemoryPushTransport transport;
+    private CircuitBreaker circuitBreaker;
+    private PushClient client;
+    private TestMessageFactory factory;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock(1000);
+        transport = new InMemoryPushTransport();
+        circuitBreaker = new CircuitBreaker(10, 3, 50, 10000, OPEN_TIME);
+        circuitBreaker.setClock(clock);
+        client = new PushClient("secret", "key");
+        client.setTransport(transport);
+        client.setCircuitBreaker(circuitBreaker);
+        client.setClock(clock);
+        client.setRetryDelay(RETRY_DELAY);
+        factory = new TestMessageFactory(client);
+    }
+
+    @Test
+    public void testSleepAdvancesTime() throws InterruptedException {
+        clock.sleep(500);
+        clock.sleep(0);
+        clock.advance(250);
+
+        assertEquals(1750, clock.currentTimeMillis());
+        assertEquals(2, clock.getSleepCount());
+        assertEquals(500, clock.getTotalSleepTime());
+    }
+
+    @Test
+    public void testSleepThrowsWhenInterrupted() {
+        Thread.currentThread().interrupt();
+        try {
+            clock.sleep(500);
+            fail("Expected the sleep to be interrupted");
+        } catch (InterruptedException e) {
+            assertEquals(1000, clock.currentTimeMillis());
+        }
+    }
+
+    @Test
+    public void testCantAdvanceBackwards() {
+        try {
+            clock.advance(-1);
+            fail("Expected the clock to refuse");
+        } catch (IllegalArgumentException e) {
+            assertEquals(1000, clock.currentTimeMillis());
+        }
+    }
+
+    @Test
+    public void testRetriesRunWithoutWaiting() throws Exception {
+        transport.setDefaultResponse(400, "Bad Request");
+
+        long startTime = System.currentTimeMillis();
+        client.send(URL, factory, null, null);
+
+        assertTrue(System.currentTimeMillis() - startTime < RETRY_DELAY);
+        assertEquals(3, transport.getRequests().size());
+        assertEquals(3, clock.getSleepCount());
+        assertEquals(3 * RETRY_DELAY, clock.getTotalSleepTime());
+    }
+
+    @Test
+    public void testBatchRetriesRunOnClock() throws Exception {
+        transport.setDefaultResponse(400, "Bad Request");
+        client.setMaxRetries(2);
+
+        PushClient.BatchResult result = client.sendBatch(URL, Arrays.asList("{}", "{}"), null, 2);
+
+        assertEquals(2, result.getFailures().size());
+        assertEquals(2 * 2 * RETRY_DELAY, clock.getTotalSleepTime());
+    }
+
+    @Test
+    public void testCircuitRecoversAfterOpenTime() throws Exception {
+        transport.setDefaultResponse(500, "Internal Server Error");
+        try {
+            client.send(URL, factory, null, null);
+            fail("Expected the circuit to open");
+        } catch (CircuitOpenException e) {
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+        }
+
+        // Still open just before the open time has passed
+        clock.advance(OPEN_TIME - 1);
+        try {
+            client.send(URL, factory, null, null);
+            fail("Expected the circuit to still be open");
+        } catch (CircuitOpenException e) {
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+        }
+
+        clock.advance(1);
+        transport.setDefaultResponse(202, "Accepted");
+        client.send(URL, factory, null, null);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(URL));
+    }
+
+    @Test
+    public void testProbeWaitsForClock() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.acquire(URL);
+            circuitBreaker.recordFailure(URL);
+        }
+
+        clock.advance(OPEN_TIME);
+        circuitBreaker.acquire(URL);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(URL));
+
+        circuitBreaker.recordFailure(URL);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+
+        // The open time starts again from the failed probe
+        clock.advance(OPEN_TIME - 1);
+        try {
+            circuitBreaker.acquire(URL);
+            fail("Expected the circuit to still be open");
+        } catch (CircuitOpenException e) {
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(URL));
+        }
+    }
+}